@@ -0,0 +1,91 @@
+package socks_proxy;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Drains a listening socket in batches; shared by the acceptor thread and by the
+// event loops that own SO_REUSEPORT listeners
+class Acceptor {
+    private static final Path NETSTAT = Paths.get("/proc/net/netstat");
+
+    private final int batchLimit;
+    private final AdmissionControl admission;
+    private final LongAdder accepted;
+    private final LongAdder batches;
+    private final LongAdder batchLimitReached;
+    private final LongAdder acceptErrors;
+
+    Acceptor(int batchLimit, AdmissionControl admission, ProxyMetrics metrics) {
+        this.batchLimit = batchLimit;
+        this.admission = admission;
+
+        accepted = metrics.counter("accept.accepted");
+        batches = metrics.counter("accept.batches");
+        batchLimitReached = metrics.counter("accept.batchLimitReached");
+        acceptErrors = metrics.counter("accept.errors");
+        metrics.rate("accept.perSecond", accepted);
+        metrics.gauge("accept.listenOverflows", Acceptor::readListenOverflows);
+    }
+
+    // Accepts until the backlog is empty or the batch limit is hit; in the latter case
+    // the key stays acceptable and the rest is taken on the next selector round
+    void acceptBatch(SelectionKey listenerKey, Consumer<SocketChannel> handler) {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) listenerKey.channel();
+        int count = 0;
+        while ((count < batchLimit) && admission.shouldAccept(listenerKey)) {
+            SocketChannel socketChannel;
+            try {
+                socketChannel = serverChannel.accept();
+            } catch (IOException io) {
+                // Typically EMFILE; the listener must survive it without spinning on the
+                // connection left in the backlog, the sessions already open are unaffected
+                acceptErrors.increment();
+                admission.pauseAfterAcceptError(listenerKey);
+                break;
+            }
+            if (socketChannel == null)
+                break;
+
+            count++;
+            if (admission.admit(socketChannel, listenerKey))
+                handler.accept(socketChannel);
+        }
+
+        if (count == 0)
+            return;
+
+        accepted.add(count);
+        batches.increment();
+        if (count == batchLimit)
+            batchLimitReached.increment();
+    }
+
+    // Re-arms listeners paused by a failed accept; returns the milliseconds until that is due, or -1
+    long resumeAfterBackoff() {
+        return admission.resumeAfterBackoff();
+    }
+
+    // Host-wide count of connections dropped because a listen queue was full (Linux only, -1 elsewhere)
+    private static long readListenOverflows() {
+        try {
+            List<String> lines = Files.readAllLines(NETSTAT);
+            for (int i = 0; i + 1 < lines.size(); i += 2) {
+                if (!lines.get(i).startsWith("TcpExt:"))
+                    continue;
+
+                List<String> names = Arrays.asList(lines.get(i).split(" "));
+                String[] values = lines.get(i + 1).split(" ");
+                int index = names.indexOf("ListenOverflows");
+                if ((index > 0) && (index < values.length))
+                    return Long.parseLong(values[index]);
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // Intentionally ignored
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,178 @@
+package socks_proxy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Global caps on live sessions and on pooled buffer memory. New clients past a cap are
+// either turned away right after accept or left in the backlog with the listener paused,
+// so sessions that are already relaying keep their file descriptors and buffers.
+class AdmissionControl {
+    private static final byte[] NO_ACCEPTABLE_METHODS = { 0x05, (byte) 0xFF };
+    private static final long ACCEPT_RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int maxSessions;
+    // Part of the pool kept back for sessions that are already relaying
+    private final long reservedHeadroom;
+    // Chunk size a new session needs for its relay buffers
+    private final int sessionChunkSize;
+    private final boolean pauseAccept;
+    private final BufferPool bufferPool;
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final Queue<SelectionKey> pausedListeners = new ConcurrentLinkedQueue<>();
+    // When listeners paused by a failed accept() may try again, or 0 if none waits for it
+    private volatile long acceptRetryAt = 0;
+
+    private final LongAdder rejectedBySessions;
+    private final LongAdder rejectedByMemory;
+    private final LongAdder listenerPauses;
+
+    AdmissionControl(ProxyConfig config, BufferPool bufferPool, ProxyMetrics metrics) {
+        this.maxSessions = config.maxSessions;
+        this.reservedHeadroom = bufferPool.getMaxBytes() - resolveMaxBufferBytes(config.admissionMaxBufferBytes, bufferPool.getMaxBytes());
+        this.sessionChunkSize = config.relayMinBufferSize;
+        this.pauseAccept = config.admissionPauseAccept;
+        this.bufferPool = bufferPool;
+
+        rejectedBySessions = metrics.counter("sessions.rejected.sessions");
+        rejectedByMemory = metrics.counter("sessions.rejected.memory");
+        listenerPauses = metrics.counter("accept.pauses");
+        metrics.gauge("sessions.active", activeSessions::get);
+    }
+
+    // Resolved here rather than in the config, so that a config built in code without
+    // validation still gets a usable cap. New sessions stop a bit before the pool does,
+    // so relaying sessions can still grow their buffers.
+    private static long resolveMaxBufferBytes(long configured, long poolMaxBytes) {
+        if ((configured < 0) || (configured > poolMaxBytes))
+            return poolMaxBytes / 10 * 9;
+        return configured;
+    }
+
+    // In the pausing mode a full proxy leaves new clients in the backlog instead of accepting them
+    boolean shouldAccept(SelectionKey listenerKey) {
+        if (!pauseAccept || hasCapacity())
+            return true;
+
+        pauseListener(listenerKey);
+        return false;
+    }
+
+    // Called for every accepted client before it is handed to an event loop;
+    // returns false if the client has been turned away
+    boolean admit(SocketChannel client, SelectionKey listenerKey) {
+        if (tryAcquire())
+            return true;
+
+        reject(client);
+        if (pauseAccept)
+            pauseListener(listenerKey);
+        return false;
+    }
+
+    // accept() failed, typically with EMFILE. The connection stays in the backlog and would wake
+    // the selector again at once, so the listener rests until a session closes or a back-off passes.
+    void pauseAfterAcceptError(SelectionKey listenerKey) {
+        acceptRetryAt = System.nanoTime() + ACCEPT_RETRY_DELAY;
+        if (disarmListener(listenerKey))
+            listenerPauses.increment();
+    }
+
+    // Called on every round of a loop that owns a listener; returns the milliseconds
+    // until the back-off ends, or -1 if no listener waits for it
+    long resumeAfterBackoff() {
+        long retryAt = acceptRetryAt;
+        if (retryAt == 0)
+            return -1;
+
+        long remaining = retryAt - System.nanoTime();
+        if (remaining > 0)
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+
+        acceptRetryAt = 0;
+        resumeListeners();
+        return -1;
+    }
+
+    // Called exactly once for every admitted session when it closes
+    void release() {
+        activeSessions.decrementAndGet();
+        if (!pausedListeners.isEmpty() && hasCapacity())
+            resumeListeners();
+    }
+
+    private boolean tryAcquire() {
+        if (!hasBufferMemory()) {
+            rejectedByMemory.increment();
+            return false;
+        }
+
+        if (activeSessions.incrementAndGet() > maxSessions) {
+            activeSessions.decrementAndGet();
+            rejectedBySessions.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasCapacity() {
+        return (activeSessions.get() < maxSessions) && hasBufferMemory();
+    }
+
+    // Counts only memory a new session could actually get: free chunks too small for its
+    // relay buffers do not help, however much of the pool they add up to
+    private boolean hasBufferMemory() {
+        return bufferPool.getAvailableBytes(sessionChunkSize) > reservedHeadroom;
+    }
+
+    // The client has not sent its greeting yet, so the only failure it can parse is the
+    // method selection reply; 0xFF obliges it to close the connection
+    private void reject(SocketChannel client) {
+        try {
+            client.configureBlocking(false);
+            client.write(ByteBuffer.wrap(NO_ACCEPTABLE_METHODS));
+        } catch (IOException ignored) {
+            // Intentionally ignored
+        }
+
+        try {
+            client.close();
+        } catch (IOException ignored) {
+            // Intentionally ignored
+        }
+    }
+
+    private void pauseListener(SelectionKey listenerKey) {
+        if (!disarmListener(listenerKey))
+            return;
+
+        listenerPauses.increment();
+
+        // A session may have closed between the rejection and the pause
+        if (hasCapacity())
+            resumeListeners();
+    }
+
+    private boolean disarmListener(SelectionKey listenerKey) {
+        if ((listenerKey.interestOps() & SelectionKey.OP_ACCEPT) == 0)
+            return false;
+
+        listenerKey.interestOps(0);
+        pausedListeners.add(listenerKey);
+        return true;
+    }
+
+    private void resumeListeners() {
+        SelectionKey listenerKey;
+        while ((listenerKey = pausedListeners.poll()) != null) {
+            if (listenerKey.isValid()) {
+                listenerKey.interestOps(SelectionKey.OP_ACCEPT);
+                listenerKey.selector().wakeup();
+            }
+        }
+    }
+}
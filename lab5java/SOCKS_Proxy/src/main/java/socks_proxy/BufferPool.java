@@ -0,0 +1,230 @@
+package socks_proxy;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Direct memory carved into power-of-two chunks, managed like a buddy allocator: a request
+// is served from the smallest free chunk that fits, split in halves as needed, and a
+// released chunk merges with its free buddy, so memory split for small buffers becomes
+// available to large ones again once those buffers are released.
+class BufferPool {
+    static final int MIN_CHUNK_SIZE = 512;
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    // Part of a slab, identified by its offset and size class
+    private static final class Block {
+        final Slab slab;
+        final int offset;
+        final int index;
+
+        Block(Slab slab, int offset, int index) {
+            this.slab = slab;
+            this.offset = offset;
+            this.index = index;
+        }
+    }
+
+    private static final class Slab {
+        final ByteBuffer memory;
+        // Free blocks by offset; free blocks never overlap, so an offset names at most one
+        final Map<Integer, Block> freeBlocks = new HashMap<>();
+
+        Slab(ByteBuffer memory) {
+            this.memory = memory;
+        }
+    }
+
+    // One free set per power-of-two chunk size, from MIN_CHUNK_SIZE up to MAX_CHUNK_SIZE.
+    // Sets rather than queues, since merging takes a buddy out of the middle.
+    private final List<Set<Block>> freeBlocks = new ArrayList<>();
+    // Blocks behind the chunks handed out, to find the slab and buddy on release
+    private final Map<ByteBuffer, Block> usedBlocks = new IdentityHashMap<>();
+    // Number of free chunks per size class, readable without the pool lock
+    private final AtomicLongArray freeCounts;
+    private final long maxBytes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder exhausted;
+    private final LongAdder splits;
+    private final LongAdder merges;
+
+    BufferPool(long maxBytes, ProxyMetrics metrics) {
+        this.maxBytes = maxBytes;
+
+        for (int size = MIN_CHUNK_SIZE; size <= MAX_CHUNK_SIZE; size <<= 1)
+            freeBlocks.add(new LinkedHashSet<>());
+        freeCounts = new AtomicLongArray(freeBlocks.size());
+
+        hits = metrics.counter("pool.hits");
+        misses = metrics.counter("pool.misses");
+        exhausted = metrics.counter("pool.exhausted");
+        splits = metrics.counter("pool.splits");
+        merges = metrics.counter("pool.merges");
+        metrics.gauge("pool.reservedBytes", reservedBytes::get);
+        metrics.gauge("pool.usedBytes", usedBytes::get);
+        metrics.gauge("pool.availableBytes", () -> getAvailableBytes(MIN_CHUNK_SIZE));
+    }
+
+    synchronized ByteBuffer acquire(int size) throws IOException {
+        int chunkSize = chunkSizeFor(size);
+        int index = classIndex(chunkSize);
+
+        Block block = pollFree(index);
+        if (block != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            block = splitLarger(index);
+            if ((block == null) && carveSlab(chunkSize))
+                block = splitLarger(index);
+            if (block == null) {
+                exhausted.increment();
+                throw new IOException("Buffer pool memory limit of " + maxBytes + " bytes is reached");
+            }
+        }
+
+        ByteBuffer chunk = block.slab.memory.slice(block.offset, chunkSize);
+        usedBlocks.put(chunk, block);
+        usedBytes.addAndGet(chunkSize);
+        return chunk;
+    }
+
+    synchronized void release(ByteBuffer chunk) {
+        if (chunk == null)
+            return;
+
+        Block block = usedBlocks.remove(chunk);
+        if (block == null)
+            return;
+
+        usedBytes.addAndGet(-chunk.capacity());
+
+        // Merge with the buddy while it is free as a whole; a buddy past the end of a
+        // slab shrunk near the limit is never free, which stops the merge there
+        Slab slab = block.slab;
+        int offset = block.offset;
+        int index = block.index;
+        while (index < freeBlocks.size() - 1) {
+            Block buddy = slab.freeBlocks.get(offset ^ classSize(index));
+            if ((buddy == null) || (buddy.index != index))
+                break;
+
+            removeFree(buddy);
+            merges.increment();
+            offset = Math.min(offset, buddy.offset);
+            index++;
+        }
+        pushFree(new Block(slab, offset, index));
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    // Bytes that can still be handed out in chunks of at least the given size: the
+    // unreserved rest of the limit plus the free chunks of that class and the larger ones
+    long getAvailableBytes(int size) {
+        long available = maxBytes - reservedBytes.get();
+        for (int index = classIndex(chunkSizeFor(size)); index < freeBlocks.size(); index++)
+            available += freeCounts.get(index) * classSize(index);
+        return available;
+    }
+
+    // Adds a new slab to the free sets; returns false once the limit is reserved
+    private boolean carveSlab(int chunkSize) {
+        int slabSize = reserve(SLAB_SIZE, chunkSize);
+        if (slabSize < 0)
+            return false;
+
+        // A full slab is one free chunk of the largest class; a slab shrunk near the
+        // limit is cut into the largest aligned chunks that fit
+        Slab slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+        for (int offset = 0; offset < slabSize; ) {
+            int size = Math.min(Integer.lowestOneBit(offset | SLAB_SIZE), Integer.highestOneBit(slabSize - offset));
+            pushFree(new Block(slab, offset, classIndex(size)));
+            offset += size;
+        }
+        return true;
+    }
+
+    // Takes the smallest free chunk at or above the class and halves it down to the class:
+    // the first half is returned, the others go to the free sets one per size in between
+    private Block splitLarger(int index) {
+        for (int larger = index; larger < freeBlocks.size(); larger++) {
+            Block block = pollFree(larger);
+            if (block == null)
+                continue;
+
+            if (larger > index)
+                splits.increment();
+            for (int i = larger - 1; i >= index; i--)
+                pushFree(new Block(block.slab, block.offset + classSize(i), i));
+            return new Block(block.slab, block.offset, index);
+        }
+        return null;
+    }
+
+    private Block pollFree(int index) {
+        Iterator<Block> blocks = freeBlocks.get(index).iterator();
+        if (!blocks.hasNext())
+            return null;
+
+        Block block = blocks.next();
+        blocks.remove();
+        block.slab.freeBlocks.remove(block.offset);
+        freeCounts.decrementAndGet(index);
+        return block;
+    }
+
+    private void removeFree(Block block) {
+        freeBlocks.get(block.index).remove(block);
+        block.slab.freeBlocks.remove(block.offset);
+        freeCounts.decrementAndGet(block.index);
+    }
+
+    private void pushFree(Block block) {
+        freeBlocks.get(block.index).add(block);
+        block.slab.freeBlocks.put(block.offset, block);
+        freeCounts.incrementAndGet(block.index);
+    }
+
+    // Returns the size of the reserved slab, or -1 if not even one chunk fits under the limit
+    private int reserve(int slabSize, int chunkSize) {
+        while (true) {
+            long reserved = reservedBytes.get();
+            long available = maxBytes - reserved;
+            if (available < chunkSize)
+                return -1;
+
+            // Near the limit a slab shrinks to the chunks that still fit
+            int size = (int) Math.min(slabSize, available - (available % chunkSize));
+            if (reservedBytes.compareAndSet(reserved, reserved + size))
+                return size;
+        }
+    }
+
+    private static int chunkSizeFor(int size) {
+        if (size > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("Buffer of " + size + " bytes exceeds the largest chunk size");
+
+        return Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(size - 1) << 1);
+    }
+
+    private static int classSize(int index) {
+        return MIN_CHUNK_SIZE << index;
+    }
+
+    private static int classIndex(int chunkSize) {
+        return Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+}
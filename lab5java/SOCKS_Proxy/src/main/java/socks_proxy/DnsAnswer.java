@@ -0,0 +1,114 @@
+package socks_proxy;
+
+import java.net.*;
+import java.util.*;
+
+import org.xbill.DNS.*;
+
+class DnsAnswer {
+    // One CNAME link of the chain from the queried name to the canonical one
+    static class Alias {
+        final String name;
+        final String target;
+        final long ttl;
+
+        Alias(String name, String target, long ttl) {
+            this.name = name;
+            this.target = target;
+            this.ttl = ttl;
+        }
+    }
+
+    final List<InetAddress> addresses;
+    final long ttl;
+    // TTL for caching the absence of addresses, or -1 if the answer must not be cached (RFC 2308)
+    final long negativeTtl;
+    final List<Alias> aliases;
+    // The chain ends in a name the resolver did not answer for, so it has to be queried directly
+    final boolean isIncomplete;
+
+    DnsAnswer(List<InetAddress> addresses, long ttl, long negativeTtl) {
+        this(addresses, ttl, negativeTtl, Collections.emptyList(), false);
+    }
+
+    DnsAnswer(List<InetAddress> addresses, long ttl, long negativeTtl, List<Alias> aliases, boolean isIncomplete) {
+        this.addresses = addresses;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.aliases = aliases;
+        this.isIncomplete = isIncomplete;
+    }
+
+    boolean isEmpty() {
+        return addresses.isEmpty();
+    }
+
+    // The name the addresses or the negative answer belong to, or null without aliases
+    String canonicalName() {
+        return aliases.isEmpty() ? null : aliases.get(aliases.size() - 1).target;
+    }
+
+    static DnsAnswer fromMessage(Message msg, int type) {
+        // Error replies such as REFUSED or FORMERR often come without the question
+        org.xbill.DNS.Record question = msg.getQuestion();
+        if (question == null)
+            return new DnsAnswer(Collections.emptyList(), 0, -1);
+
+        List<org.xbill.DNS.Record> answers = msg.getSection(Section.ANSWER);
+        List<Alias> aliases = new ArrayList<>();
+        Name name = question.getName();
+        while (true) {
+            CNAMERecord link = findAlias(answers, name);
+            if (link == null)
+                break;
+            if (aliases.size() == DnsCodec.MAX_CHAIN_LENGTH)
+                return new DnsAnswer(Collections.emptyList(), 0, -1);
+
+            aliases.add(new Alias(DnsCache.keyOf(name.toString()), DnsCache.keyOf(link.getTarget().toString()), link.getTTL()));
+            name = link.getTarget();
+        }
+
+        List<InetAddress> addresses = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for (org.xbill.DNS.Record answer : answers) {
+            if (!answer.getName().equals(name))
+                continue;
+
+            if ((type == Type.A) && (answer instanceof ARecord)) {
+                addresses.add(((ARecord) answer).getAddress());
+                ttl = Math.min(ttl, answer.getTTL());
+            } else if ((type == Type.AAAA) && (answer instanceof AAAARecord)) {
+                addresses.add(((AAAARecord) answer).getAddress());
+                ttl = Math.min(ttl, answer.getTTL());
+            }
+        }
+
+        if (!addresses.isEmpty())
+            return new DnsAnswer(addresses, ttl, -1, aliases, false);
+
+        long negativeTtl = extractNegativeTtl(msg);
+        boolean isIncomplete = !aliases.isEmpty() && (negativeTtl < 0) && (msg.getRcode() == Rcode.NOERROR);
+        return new DnsAnswer(addresses, 0, negativeTtl, aliases, isIncomplete);
+    }
+
+    private static CNAMERecord findAlias(List<org.xbill.DNS.Record> answers, Name name) {
+        for (org.xbill.DNS.Record answer : answers) {
+            if ((answer instanceof CNAMERecord) && answer.getName().equals(name))
+                return (CNAMERecord) answer;
+        }
+        return null;
+    }
+
+    private static long extractNegativeTtl(Message msg) {
+        int rcode = msg.getRcode();
+        if ((rcode != Rcode.NXDOMAIN) && (rcode != Rcode.NOERROR))
+            return -1;
+
+        for (org.xbill.DNS.Record authority : msg.getSection(Section.AUTHORITY)) {
+            if (authority instanceof SOARecord) {
+                return Math.min(authority.getTTL(), ((SOARecord) authority).getMinimum());
+            }
+        }
+        return -1;
+    }
+}
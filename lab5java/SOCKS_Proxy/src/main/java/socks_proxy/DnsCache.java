@@ -0,0 +1,226 @@
+package socks_proxy;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+class DnsCache {
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long expiresAt;
+        final long refreshAt;
+        int hits;
+        boolean isRefreshing;
+
+        Entry(List<InetAddress> addresses, long expiresAt) {
+            this(addresses, expiresAt, expiresAt);
+        }
+
+        Entry(List<InetAddress> addresses, long expiresAt, long refreshAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    private static class AliasEntry {
+        final String target;
+        final long expiresAt;
+
+        AliasEntry(String target, long expiresAt) {
+            this.target = target;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private final Map<String, Entry> negativeEntries;
+    private final Map<String, AliasEntry> aliases;
+    private final long minTtl;
+    private final long maxTtl;
+    private final long maxNegativeTtl;
+    private final int prefetchPercent;
+    private final int prefetchMinHits;
+    private final long staleTtl;
+    // Asks the resolver to refresh a name and type in the background
+    private final BiConsumer<String, Integer> refresher;
+
+    private final LongAdder hits;
+    private final LongAdder negativeHits;
+    private final LongAdder misses;
+    private final LongAdder size;
+    private final LongAdder negativeSize;
+    private final LongAdder aliasSize;
+    private final LongAdder prefetches;
+    private final LongAdder staleHits;
+
+    DnsCache(ProxyConfig config, ProxyMetrics metrics, BiConsumer<String, Integer> refresher) {
+        minTtl = TimeUnit.SECONDS.toNanos(config.dnsCacheMinTtlSeconds);
+        maxTtl = TimeUnit.SECONDS.toNanos(config.dnsCacheMaxTtlSeconds);
+        maxNegativeTtl = TimeUnit.SECONDS.toNanos(config.dnsCacheMaxNegativeTtlSeconds);
+        prefetchPercent = config.dnsCachePrefetchPercent;
+        prefetchMinHits = config.dnsCachePrefetchMinHits;
+        staleTtl = TimeUnit.SECONDS.toNanos(config.dnsCacheStaleTtlSeconds);
+        this.refresher = refresher;
+
+        hits = metrics.counter("dns.cache.hits");
+        negativeHits = metrics.counter("dns.cache.negativeHits");
+        misses = metrics.counter("dns.cache.misses");
+        size = metrics.counter("dns.cache.size");
+        negativeSize = metrics.counter("dns.cache.negativeSize");
+        aliasSize = metrics.counter("dns.cache.aliasSize");
+        prefetches = metrics.counter("dns.cache.prefetches");
+        staleHits = metrics.counter("dns.cache.staleHits");
+        metrics.gauge("dns.cache.hitRatioPercent", () -> {
+            long found = hits.sum() + negativeHits.sum();
+            long total = found + misses.sum();
+            return (total == 0) ? 0 : (found * 100 / total);
+        });
+
+        entries = createLruMap(config.dnsCacheMaxEntries, size);
+        negativeEntries = createLruMap(config.dnsCacheMaxNegativeEntries, negativeSize);
+        aliases = createLruMap(config.dnsCacheMaxEntries, aliasSize);
+    }
+
+    // Access-ordered map, so the eldest entry is the least recently used one
+    private static <V> Map<String, V> createLruMap(int maxEntries, LongAdder size) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() <= maxEntries)
+                    return false;
+
+                size.decrement();
+                return true;
+            }
+        };
+    }
+
+    // Empty list means a cached negative answer, null means the name has to be resolved
+    List<InetAddress> lookup(String host, int type) {
+        String key = entryKey(host, type);
+
+        List<InetAddress> addresses = lookupPositive(host, type, key);
+        if (addresses != null)
+            return addresses;
+
+        addresses = lookup(negativeEntries, negativeSize, key);
+        if (addresses != null) {
+            negativeHits.increment();
+            return addresses;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    // A popular name is refreshed in the background once most of its TTL has passed, so its
+    // entry is renewed before it expires; with serve-stale (RFC 8767) an expired entry is
+    // still answered for a while as long as the refresh is under way
+    private List<InetAddress> lookupPositive(String host, int type, String key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+
+        long now = System.nanoTime();
+        if (entry.expiresAt - now <= 0) {
+            if (now - entry.expiresAt >= staleTtl) {
+                entries.remove(key);
+                size.decrement();
+                return null;
+            }
+
+            staleHits.increment();
+            refresh(entry, host, type);
+            return entry.addresses;
+        }
+
+        hits.increment();
+        entry.hits++;
+        if ((entry.refreshAt - now <= 0) && (entry.hits >= prefetchMinHits)) {
+            prefetches.increment();
+            refresh(entry, host, type);
+        }
+        return entry.addresses;
+    }
+
+    private void refresh(Entry entry, String host, int type) {
+        if (entry.isRefreshing)
+            return;
+
+        entry.isRefreshing = true;
+        refresher.accept(host, type);
+    }
+
+    private List<InetAddress> lookup(Map<String, Entry> map, LongAdder mapSize, String key) {
+        Entry entry = map.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.expiresAt - System.nanoTime() <= 0) {
+            map.remove(key);
+            mapSize.decrement();
+            return null;
+        }
+        return entry.addresses;
+    }
+
+    // Follows the cached CNAME links of the name; every link expires on its own TTL
+    String canonicalName(String host) {
+        String name = keyOf(host);
+        for (int links = 0; links < DnsCodec.MAX_CHAIN_LENGTH; links++) {
+            AliasEntry alias = aliases.get(name);
+            if (alias == null)
+                break;
+
+            if (alias.expiresAt - System.nanoTime() <= 0) {
+                aliases.remove(name);
+                aliasSize.decrement();
+                break;
+            }
+            name = alias.target;
+        }
+        return name;
+    }
+
+    void putAlias(String host, String target, long ttlSeconds) {
+        long ttl = Math.max(minTtl, Math.min(maxTtl, TimeUnit.SECONDS.toNanos(ttlSeconds)));
+        if (aliases.put(keyOf(host), new AliasEntry(keyOf(target), System.nanoTime() + ttl)) == null)
+            aliasSize.increment();
+    }
+
+    void put(String host, int type, List<InetAddress> addresses, long ttlSeconds) {
+        String key = entryKey(host, type);
+        long ttl = Math.max(minTtl, Math.min(maxTtl, TimeUnit.SECONDS.toNanos(ttlSeconds)));
+
+        if (negativeEntries.remove(key) != null)
+            negativeSize.decrement();
+
+        long now = System.nanoTime();
+        long refreshAt = (prefetchPercent > 0) ? (now + ttl / 100 * prefetchPercent) : (now + ttl);
+        if (entries.put(key, new Entry(addresses, now + ttl, refreshAt)) == null)
+            size.increment();
+    }
+
+    void putNegative(String host, int type, long ttlSeconds) {
+        String key = entryKey(host, type);
+        long ttl = Math.max(minTtl, Math.min(maxNegativeTtl, TimeUnit.SECONDS.toNanos(ttlSeconds)));
+
+        if (entries.remove(key) != null)
+            size.decrement();
+        if (negativeEntries.put(key, new Entry(Collections.emptyList(), System.nanoTime() + ttl)) == null)
+            negativeSize.increment();
+    }
+
+    // A and AAAA answers of a name are cached apart, each with its own TTL and negative state
+    private static String entryKey(String host, int type) {
+        return keyOf(host) + '/' + type;
+    }
+
+    static String keyOf(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        return key.endsWith(".") ? key.substring(0, key.length() - 1) : key;
+    }
+}
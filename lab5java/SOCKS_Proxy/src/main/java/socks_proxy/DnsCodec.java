@@ -0,0 +1,348 @@
+package socks_proxy;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+// Encoder and decoder for the few DNS messages the proxy needs on its hot path.
+// Anything it does not understand is left to dnsjava.
+class DnsCodec {
+    static final int TYPE_A = 1;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_AAAA = 28;
+    static final int CLASS_IN = 1;
+
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_TC = 0x0200;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_LABELS = 128;
+    static final int MAX_CHAIN_LENGTH = 8;
+
+    private DnsCodec() {
+    }
+
+    // Writes a recursive query into the cleared buffer and flips it.
+    // Returns false if the host has to be encoded by dnsjava (escapes, non-ASCII, bad labels).
+    static boolean writeQuery(ByteBuffer out, int id, String host, int type) {
+        out.clear();
+        out.putShort((short) id);
+        out.putShort((short) FLAG_RD);
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+
+        int nameStart = out.position();
+        int lengthPosition = out.position();
+        out.put((byte) 0);
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if ((c > 0x7E) || (c <= 0x20) || (c == '\\'))
+                return false;
+
+            if (c == '.') {
+                if (!closeLabel(out, lengthPosition))
+                    return false;
+                lengthPosition = out.position();
+                out.put((byte) 0);
+            } else {
+                out.put((byte) c);
+            }
+        }
+
+        if (!closeLabel(out, lengthPosition))
+            return false;
+        out.put((byte) 0);
+        if (out.position() - nameStart > MAX_NAME_LENGTH)
+            return false;
+
+        out.putShort((short) type);
+        out.putShort((short) CLASS_IN);
+        out.flip();
+        return true;
+    }
+
+    private static boolean closeLabel(ByteBuffer out, int lengthPosition) {
+        int length = out.position() - lengthPosition - 1;
+        if ((length == 0) || (length > MAX_LABEL_LENGTH))
+            return false;
+
+        out.put(lengthPosition, (byte) length);
+        return true;
+    }
+
+    static int readId(ByteBuffer in) {
+        return in.getShort(in.position()) & 0xFFFF;
+    }
+
+    // RFC 5452: a reply is only taken for the question that was asked, with the same QNAME
+    // (compared case-insensitively), QTYPE and QCLASS. Names the codec cannot encode are
+    // compared byte for byte here, so the caller double-checks a mismatch with dnsjava.
+    static boolean matchesQuestion(ByteBuffer in, String host, int type) {
+        try {
+            int start = in.position();
+            if ((in.limit() - start < HEADER_SIZE) || ((in.getShort(start + 4) & 0xFFFF) != 1))
+                return false;
+
+            int position = start + HEADER_SIZE;
+            int index = 0;
+            for (int length = in.get(position) & 0xFF; length != 0; length = in.get(position) & 0xFF) {
+                // Nothing precedes the question, so a pointer in its name is malformed
+                if ((length & 0xC0) != 0)
+                    return false;
+
+                if (index > 0) {
+                    if ((index >= host.length()) || (host.charAt(index) != '.'))
+                        return false;
+                    index++;
+                }
+                for (int i = 1; i <= length; i++, index++) {
+                    if ((index >= host.length()) || (toLowerCase(in.get(position + i)) != toLowerCase((byte) host.charAt(index))))
+                        return false;
+                }
+                position += length + 1;
+            }
+            position++;
+
+            return (index == host.length()) && ((in.getShort(position) & 0xFFFF) == type)
+                    && ((in.getShort(position + 2) & 0xFFFF) == CLASS_IN);
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    static boolean hasQuestion(ByteBuffer in) {
+        return (in.remaining() >= HEADER_SIZE) && ((in.getShort(in.position() + 4) & 0xFFFF) != 0);
+    }
+
+    // NOERROR and NXDOMAIN are answers; SERVFAIL, REFUSED and the rest only say this server failed
+    static boolean isServerFailure(ByteBuffer in) {
+        if (in.remaining() < 4)
+            return false;
+
+        int rcode = in.getShort(in.position() + 2) & 0xF;
+        return (rcode != RCODE_NOERROR) && (rcode != RCODE_NXDOMAIN);
+    }
+
+    static boolean isTruncated(ByteBuffer in) {
+        return (in.remaining() >= 4) && ((in.getShort(in.position() + 2) & FLAG_TC) != 0);
+    }
+
+    // Parses a response without copying it. Returns null if the message is malformed
+    // or unusual, so that the caller falls back to dnsjava.
+    static DnsAnswer readAnswer(ByteBuffer in, int type) {
+        try {
+            return parseAnswer(in, type);
+        } catch (RuntimeException | UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static DnsAnswer parseAnswer(ByteBuffer in, int type) throws UnknownHostException {
+        int start = in.position();
+        if (in.limit() - start < HEADER_SIZE)
+            return null;
+
+        int flags = in.getShort(start + 2) & 0xFFFF;
+        int questions = in.getShort(start + 4) & 0xFFFF;
+        int answers = in.getShort(start + 6) & 0xFFFF;
+        int authorities = in.getShort(start + 8) & 0xFFFF;
+        if (((flags & FLAG_QR) == 0) || ((flags & OPCODE_MASK) != 0) || (questions != 1))
+            return null;
+
+        int questionName = start + HEADER_SIZE;
+        int position = skipName(in, questionName);
+        if (position < 0)
+            return null;
+        position += 4;
+
+        // Positions of every answer record, so that the CNAME chain can be followed
+        // whatever order the records came in
+        int[] owners = new int[answers];
+        int[] records = new int[answers];
+        for (int i = 0; i < answers; i++) {
+            owners[i] = position;
+            position = skipName(in, position);
+            if (position < 0)
+                return null;
+
+            records[i] = position;
+            position += 10 + (in.getShort(position + 8) & 0xFFFF);
+            if (position > in.limit())
+                return null;
+        }
+
+        List<DnsAnswer.Alias> aliases = Collections.emptyList();
+        int name = questionName;
+        while (true) {
+            int link = findRecord(in, start, owners, records, name, TYPE_CNAME, 0);
+            if (link < 0)
+                break;
+            if (aliases.size() == MAX_CHAIN_LENGTH)
+                return new DnsAnswer(Collections.emptyList(), 0, -1);
+
+            if (aliases.isEmpty())
+                aliases = new ArrayList<>(2);
+            int target = records[link] + 10;
+            long linkTtl = in.getInt(records[link] + 4) & 0xFFFFFFFFL;
+            aliases.add(new DnsAnswer.Alias(readName(in, start, name), readName(in, start, target), linkTtl));
+            name = target;
+        }
+
+        List<InetAddress> addresses = null;
+        long ttl = Long.MAX_VALUE;
+        int addressLength = (type == TYPE_AAAA) ? 16 : 4;
+
+        for (int i = findRecord(in, start, owners, records, name, type, 0); i >= 0;
+             i = findRecord(in, start, owners, records, name, type, i + 1)) {
+            int record = records[i];
+            if ((in.getShort(record + 8) & 0xFFFF) != addressLength)
+                return null;
+
+            byte[] address = new byte[addressLength];
+            for (int b = 0; b < addressLength; b++)
+                address[b] = in.get(record + 10 + b);
+
+            if (addresses == null)
+                addresses = new ArrayList<>(answers);
+            addresses.add(InetAddress.getByAddress(address));
+            ttl = Math.min(ttl, in.getInt(record + 4) & 0xFFFFFFFFL);
+        }
+
+        if (addresses != null)
+            return new DnsAnswer(addresses, ttl, -1, aliases, false);
+
+        int rcode = flags & 0xF;
+        if ((rcode != RCODE_NOERROR) && (rcode != RCODE_NXDOMAIN))
+            return new DnsAnswer(Collections.emptyList(), 0, -1);
+
+        for (int i = 0; i < authorities; i++) {
+            position = skipName(in, position);
+            if (position < 0)
+                return null;
+
+            int recordType = in.getShort(position) & 0xFFFF;
+            long recordTtl = in.getInt(position + 4) & 0xFFFFFFFFL;
+            int dataLength = in.getShort(position + 8) & 0xFFFF;
+            int data = position + 10;
+            position = data + dataLength;
+            if (position > in.limit())
+                return null;
+
+            if (recordType == TYPE_SOA) {
+                int serial = skipName(in, data);
+                serial = (serial < 0) ? -1 : skipName(in, serial);
+                if ((serial < 0) || (serial + 20 > position))
+                    return null;
+
+                long minimum = in.getInt(serial + 16) & 0xFFFFFFFFL;
+                return new DnsAnswer(Collections.emptyList(), 0, Math.min(recordTtl, minimum), aliases, false);
+            }
+        }
+
+        // Only aliases and nothing about the canonical name: the resolver left the chain unfinished
+        boolean isIncomplete = !aliases.isEmpty() && (rcode == RCODE_NOERROR);
+        return new DnsAnswer(Collections.emptyList(), 0, -1, aliases, isIncomplete);
+    }
+
+    // Index of the first answer record from the given one on with this owner and type, or -1
+    private static int findRecord(ByteBuffer in, int start, int[] owners, int[] records,
+                                  int name, int type, int from) {
+        for (int i = from; i < owners.length; i++) {
+            int record = records[i];
+            if (((in.getShort(record) & 0xFFFF) == type) && ((in.getShort(record + 2) & 0xFFFF) == CLASS_IN)
+                    && nameEquals(in, start, owners[i], name))
+                return i;
+        }
+        return -1;
+    }
+
+    // Case-insensitive comparison of two possibly compressed names
+    private static boolean nameEquals(ByteBuffer in, int start, int first, int second) {
+        for (int labels = 0; labels < MAX_LABELS; labels++) {
+            first = followPointers(in, start, first);
+            second = followPointers(in, start, second);
+            if ((first < 0) || (second < 0))
+                return false;
+            if (first == second)
+                return true;
+
+            int length = in.get(first) & 0xFF;
+            if (length != (in.get(second) & 0xFF))
+                return false;
+            if (length == 0)
+                return true;
+
+            for (int i = 1; i <= length; i++) {
+                if (toLowerCase(in.get(first + i)) != toLowerCase(in.get(second + i)))
+                    return false;
+            }
+            first += length + 1;
+            second += length + 1;
+        }
+        return false;
+    }
+
+    // Lowercase dotted form of a name, the way the cache keys names
+    private static String readName(ByteBuffer in, int start, int position) {
+        StringBuilder name = new StringBuilder();
+        for (int labels = 0; labels < MAX_LABELS; labels++) {
+            position = followPointers(in, start, position);
+            if (position < 0)
+                throw new IndexOutOfBoundsException("Malformed name");
+
+            int length = in.get(position) & 0xFF;
+            if (length == 0)
+                return name.toString();
+
+            if (name.length() > 0)
+                name.append('.');
+            for (int i = 1; i <= length; i++)
+                name.append((char) toLowerCase(in.get(position + i)));
+            position += length + 1;
+        }
+        throw new IndexOutOfBoundsException("Malformed name");
+    }
+
+    // Resolves compression pointers to the position of the next label, or -1 for a malformed name
+    private static int followPointers(ByteBuffer in, int start, int position) {
+        for (int jumps = 0; jumps < MAX_LABELS; jumps++) {
+            int length = in.get(position) & 0xFF;
+            if ((length & 0xC0) == 0)
+                return position;
+            if ((length & 0xC0) != 0xC0)
+                return -1;
+
+            position = start + (((length & 0x3F) << 8) | (in.get(position + 1) & 0xFF));
+        }
+        return -1;
+    }
+
+    private static int toLowerCase(byte b) {
+        return ((b >= 'A') && (b <= 'Z')) ? (b + 32) : (b & 0xFF);
+    }
+
+    // Returns the position right after the name, or -1 for a malformed one
+    private static int skipName(ByteBuffer in, int position) {
+        for (int labels = 0; labels < MAX_LABELS; labels++) {
+            int length = in.get(position) & 0xFF;
+            if (length == 0)
+                return position + 1;
+
+            if ((length & 0xC0) == 0xC0)
+                return position + 2;
+            if ((length & 0xC0) != 0)
+                return -1;
+
+            position += length + 1;
+        }
+        return -1;
+    }
+}
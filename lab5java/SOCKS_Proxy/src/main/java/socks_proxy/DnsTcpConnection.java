@@ -0,0 +1,92 @@
+package socks_proxy;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Non-blocking DNS-over-TCP connection to one upstream (RFC 7766). Queries are pipelined:
+// each one is written as soon as it arrives, and answers are matched by ID in any order.
+class DnsTcpConnection {
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int INITIAL_OUTPUT_SIZE = 1024;
+
+    final DnsUpstreams.Upstream upstream;
+    final Set<Integer> pendingIds = new HashSet<>();
+    final SocketChannel channel;
+    SelectionKey key;
+    TimerWheel.Timeout idleTimeout;
+
+    private ByteBuffer output = ByteBuffer.allocate(INITIAL_OUTPUT_SIZE);
+    private final ByteBuffer input = ByteBuffer.allocate(MAX_MESSAGE_SIZE + 2);
+
+    DnsTcpConnection(DnsUpstreams.Upstream upstream) throws IOException {
+        this.upstream = upstream;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(new InetSocketAddress(upstream.address.getAddress(), upstream.address.getPort()));
+    }
+
+    // Queues a query with its two-byte length prefix; returns true if bytes wait to be written
+    boolean enqueue(int id, ByteBuffer query) {
+        int size = query.remaining() + 2;
+        if (output.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + size));
+            output.flip();
+            larger.put(output);
+            output = larger;
+        }
+
+        output.putShort((short) query.remaining());
+        output.put(query);
+        pendingIds.add(id);
+        return hasOutput();
+    }
+
+    boolean hasOutput() {
+        return output.position() > 0;
+    }
+
+    // Writes what the socket takes; returns true once everything queued has been written
+    boolean flush() throws IOException {
+        if (!channel.isConnected())
+            return false;
+
+        output.flip();
+        channel.write(output);
+        output.compact();
+        return !hasOutput();
+    }
+
+    // Hands every complete answer to the consumer; returns false once the upstream closed the connection
+    boolean read(Consumer<ByteBuffer> consumer) throws IOException {
+        int readBytes = channel.read(input);
+
+        input.flip();
+        while (input.remaining() >= 2) {
+            int length = input.getShort(input.position()) & 0xFFFF;
+            if (input.remaining() < length + 2)
+                break;
+
+            int start = input.position() + 2;
+            ByteBuffer message = input.slice(start, length);
+            input.position(start + length);
+            consumer.accept(message);
+        }
+        input.compact();
+
+        return readBytes != -1;
+    }
+
+    void close() {
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Intentionally ignored
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package socks_proxy;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// The configured upstream resolvers ranked by a smoothed RTT estimate (RFC 6298 style)
+// plus a timeout penalty. Every timeout doubles the penalty of the server, so a dead one
+// sinks to the end of the ranking, and answers from the others slowly let it float back up.
+class DnsUpstreams {
+    static class Upstream {
+        final InetSocketAddress address;
+        long smoothedRtt;
+        long rttVariance;
+        long penalty;
+        boolean isSampled;
+
+        Upstream(InetSocketAddress address, long initialRtt) {
+            this.address = address;
+            this.smoothedRtt = initialRtt;
+        }
+    }
+
+    private static final long MAX_PENALTY = TimeUnit.SECONDS.toNanos(10);
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final long initialRtt;
+
+    DnsUpstreams(List<InetSocketAddress> addresses, long initialRtt, ProxyMetrics metrics) {
+        this.initialRtt = initialRtt;
+        for (InetSocketAddress address : addresses) {
+            Upstream upstream = new Upstream(address, initialRtt);
+            upstreams.add(upstream);
+
+            String name = address.getAddress().getHostAddress() + ":" + address.getPort();
+            metrics.gauge("dns.upstream." + name + ".srttMicros", () -> {
+                synchronized (this) {
+                    return TimeUnit.NANOSECONDS.toMicros(upstream.smoothedRtt + upstream.penalty);
+                }
+            });
+        }
+    }
+
+    // The best ranked server; as a timeout penalizes the one just tried, retries move on
+    // to the other servers once the penalty outweighs their slower RTT
+    synchronized Upstream select() {
+        Upstream best = upstreams.get(0);
+        for (Upstream upstream : upstreams) {
+            if ((upstream.smoothedRtt + upstream.penalty) < (best.smoothedRtt + best.penalty))
+                best = upstream;
+        }
+        return best;
+    }
+
+    // Retransmission timeout of the server, smoothed RTT plus four deviations, or 0 before the first answer
+    synchronized long retransmitTimeout(Upstream upstream) {
+        return upstream.isSampled ? (upstream.smoothedRtt + 4 * upstream.rttVariance) : 0;
+    }
+
+    synchronized Upstream find(SocketAddress sender) {
+        for (Upstream upstream : upstreams) {
+            if (upstream.address.equals(sender))
+                return upstream;
+        }
+        return null;
+    }
+
+    synchronized void onAnswer(Upstream upstream, long rtt) {
+        if (!upstream.isSampled) {
+            upstream.isSampled = true;
+            upstream.smoothedRtt = rtt;
+            upstream.rttVariance = rtt / 2;
+        } else {
+            long error = rtt - upstream.smoothedRtt;
+            upstream.smoothedRtt += error / 8;
+            upstream.rttVariance += (Math.abs(error) - upstream.rttVariance) / 4;
+        }
+    }
+
+    synchronized void onResponse(Upstream upstream) {
+        upstream.penalty = 0;
+        for (Upstream other : upstreams) {
+            if (other != upstream)
+                other.penalty -= other.penalty / 32;
+        }
+    }
+
+    synchronized void onTimeout(Upstream upstream) {
+        upstream.penalty = Math.min(MAX_PENALTY, Math.max(upstream.penalty * 2, upstream.smoothedRtt));
+    }
+
+    // SERVFAIL, REFUSED and the like: a server that fails fast must not keep the lead
+    // its fast RTT gives it, so the penalty starts at the estimate for an unsampled server
+    synchronized void onFailure(Upstream upstream) {
+        upstream.penalty = Math.min(MAX_PENALTY, Math.max(upstream.penalty * 2, Math.max(upstream.smoothedRtt, initialRtt)));
+    }
+}
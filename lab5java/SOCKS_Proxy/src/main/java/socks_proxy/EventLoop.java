@@ -0,0 +1,1264 @@
+package socks_proxy;
+
+import java.io.*;
+import java.nio.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.xbill.DNS.*;
+
+class EventLoop implements Runnable {
+    private static class DnsQuery {
+        final String host;
+        final int type;
+        final List<Session> waitingSessions = new ArrayList<>();
+        int id;
+        TimerWheel.Timeout timeout;
+        int attempts;
+        DnsUpstreams.Upstream upstream;
+        long sentAt;
+        DnsTcpConnection tcpConnection;
+        boolean isTcpResent;
+        // CNAME links already followed to reach this name
+        final int chainLength;
+
+        DnsQuery(String host, int type, int chainLength) {
+            this.host = host;
+            this.type = type;
+            this.chainLength = chainLength;
+        }
+
+        String key() {
+            return queryKey(host, type);
+        }
+    }
+
+    private static final long SELECTOR_TIMEOUT = 1_000;
+    private static final long DNS_TCP_TIMEOUT = 5_000;
+    private static final long DNS_TCP_IDLE_TIMEOUT = 10_000;
+    private static final long TIMER_TICK = 10;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+    private static final int DNS_SEND_BUFFER_SIZE = 512;
+    private static final int DNS_RECEIVE_BUFFER_SIZE = 4 * 1024;
+    private static final int RELAY_GROW_FULL_READS = 2;
+    private static final int RELAY_SHRINK_SMALL_READS = 16;
+
+    private final String name;
+    private final Selector selector;
+    private final DatagramChannel dnsChannel;
+    private final DnsUpstreams dnsUpstreams;
+    private final BufferPool bufferPool;
+    private final AdmissionControl admission;
+    private final DnsCache dnsCache;
+    private final int dnsReadBudget;
+    private final long dnsRetransmitTimeout;
+    private final int dnsMaxAttempts;
+    private final int relayReadBudget;
+    private final int relayHighWatermarkPercent;
+    private final int relayLowWatermarkPercent;
+    private final int relayMinBufferSize;
+    private final long connectAttemptDelay;
+    private final long connectResolutionDelay;
+    private final int relayMaxBufferSize;
+    private final LongAdder dnsQueriesSent;
+    private final LongAdder dnsQueriesCoalesced;
+    private final LongAdder dnsCodecFallbacks;
+    private final LongAdder dnsRetransmits;
+    private final LongAdder dnsServerFailures;
+    private final LongAdder dnsQueriesExpired;
+    private final LongAdder dnsResponsesIgnored;
+    private final LongAdder dnsTcpRetries;
+    private final LongAdder dnsAliasRequeries;
+    private final LongAdder relayPauses;
+    private final LongAdder relayResumes;
+    private final LongAdder relayBufferGrows;
+    private final LongAdder connectAttempts;
+    private final LongAdder connectFailures;
+    private final Histogram connectTime;
+    private final LongAdder relayBufferShrinks;
+    private final ByteBuffer dnsSendBuffer = ByteBuffer.allocateDirect(DNS_SEND_BUFFER_SIZE);
+    private final ByteBuffer dnsReceiveBuffer = ByteBuffer.allocateDirect(DNS_RECEIVE_BUFFER_SIZE);
+    private final Map<SessionState, LongAdder> sessionEvictions = new EnumMap<>(SessionState.class);
+    private final Map<SessionState, Long> sessionTimeouts = new EnumMap<>(SessionState.class);
+
+    private final QueryIdTable<DnsQuery> dnsQueries = new QueryIdTable<>();
+    private final Map<String, DnsQuery> dnsQueriesByName = new HashMap<>();
+    private final Map<DnsUpstreams.Upstream, DnsTcpConnection> dnsTcpConnections = new HashMap<>();
+    private final Queue<SocketChannel> acceptedClients = new ConcurrentLinkedQueue<>();
+    private final TimerWheel timers = new TimerWheel(TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+    private Acceptor acceptor;
+
+    EventLoop(String name, ProxyConfig config, DnsUpstreams dnsUpstreams,
+              BufferPool bufferPool, AdmissionControl admission, ProxyMetrics metrics) throws IOException {
+        this.name = name;
+        this.dnsUpstreams = dnsUpstreams;
+        this.bufferPool = bufferPool;
+        this.admission = admission;
+
+        dnsCache = new DnsCache(config, metrics, this::refreshHostName);
+        dnsReadBudget = config.dnsReadBudget;
+        dnsRetransmitTimeout = TimeUnit.MILLISECONDS.toNanos(config.dnsRetransmitMillis);
+        dnsMaxAttempts = config.dnsMaxAttempts;
+        relayReadBudget = config.relayReadBudget;
+        relayHighWatermarkPercent = config.relayHighWatermarkPercent;
+        relayLowWatermarkPercent = config.relayLowWatermarkPercent;
+        relayMinBufferSize = config.relayMinBufferSize;
+        connectAttemptDelay = config.connectAttemptDelayMillis;
+        connectResolutionDelay = config.connectResolutionDelayMillis;
+        relayMaxBufferSize = config.relayMaxBufferSize;
+        dnsQueriesSent = metrics.counter("dns.queries.sent");
+        dnsQueriesCoalesced = metrics.counter("dns.queries.coalesced");
+        dnsCodecFallbacks = metrics.counter("dns.codec.fallbacks");
+        dnsRetransmits = metrics.counter("dns.queries.retransmitted");
+        dnsServerFailures = metrics.counter("dns.responses.serverFailures");
+        dnsQueriesExpired = metrics.counter("dns.queries.expired");
+        dnsResponsesIgnored = metrics.counter("dns.responses.ignored");
+        dnsTcpRetries = metrics.counter("dns.queries.tcp");
+        dnsAliasRequeries = metrics.counter("dns.queries.aliasRequeries");
+        relayPauses = metrics.counter("relay.pauses");
+        relayResumes = metrics.counter("relay.resumes");
+        relayBufferGrows = metrics.counter("relay.buffer.grows");
+        connectAttempts = metrics.counter("connect.attempts");
+        connectFailures = metrics.counter("connect.failures");
+        connectTime = metrics.histogram("connect.timeMicros");
+        relayBufferShrinks = metrics.counter("relay.buffer.shrinks");
+
+        sessionTimeouts.put(SessionState.GREETING, config.greetingTimeoutMillis);
+        sessionTimeouts.put(SessionState.REQUEST, config.requestTimeoutMillis);
+        sessionTimeouts.put(SessionState.CONNECTING, config.connectTimeoutMillis);
+        sessionTimeouts.put(SessionState.RELAYING, config.idleTimeoutMillis);
+
+        sessionEvictions.put(SessionState.GREETING, metrics.counter("sessions.evicted.greeting"));
+        sessionEvictions.put(SessionState.REQUEST, metrics.counter("sessions.evicted.request"));
+        sessionEvictions.put(SessionState.CONNECTING, metrics.counter("sessions.evicted.connect"));
+        sessionEvictions.put(SessionState.RELAYING, metrics.counter("sessions.evicted.idle"));
+
+        selector = Selector.open();
+        dnsChannel = createDnsChannel();
+    }
+
+    private DatagramChannel createDnsChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(null);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        return channel;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void assign(SocketChannel client) {
+        acceptedClients.add(client);
+        selector.wakeup();
+    }
+
+    // Registers a listening socket of its own; called before the loop thread starts
+    void listen(ServerSocketChannel serverChannel, Acceptor acceptor) throws IOException {
+        this.acceptor = acceptor;
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        try {
+            execute();
+        } catch (IOException io) {
+            System.out.println("Event loop " + name + " stopped: " + io.getMessage());
+        }
+    }
+
+    private void execute() throws IOException {
+        while (true) {
+            registerAcceptedClients();
+            timers.expireTimeouts();
+
+            int readyChannelsNumber = selector.select(selectTimeout());
+            if (readyChannelsNumber == 0)
+                continue;
+
+            processSelectedKeys();
+        }
+    }
+
+    private long selectTimeout() {
+        long untilExpiry = timers.millisToNextExpiry();
+        return (untilExpiry < 0) ? SELECTOR_TIMEOUT : Math.min(untilExpiry, SELECTOR_TIMEOUT);
+    }
+
+    private void registerAcceptedClients() {
+        SocketChannel socketChannel;
+        while ((socketChannel = acceptedClients.poll()) != null)
+            registerClient(socketChannel);
+    }
+
+    private void registerClient(SocketChannel socketChannel) {
+        Session session = new Session(socketChannel, bufferPool, timers, admission);
+        try {
+            socketChannel.configureBlocking(false);
+            session.allocateMessageBuffer();
+            session.clientKey = socketChannel.register(selector, SelectionKey.OP_READ, session);
+            enterState(session, SessionState.GREETING);
+        } catch (IOException io) {
+            session.close();
+            System.out.println("Cannot register client: " + io.getMessage());
+        }
+    }
+
+    // A lost datagram costs one retransmission timeout instead of the whole query; every
+    // retry goes to the best ranked upstream again and waits twice as long as the last one
+    private void retransmitDnsQuery(DnsQuery dnsQuery) {
+        dnsQuery.timeout = null;
+        dnsUpstreams.onTimeout(dnsQuery.upstream);
+        retryDnsQuery(dnsQuery);
+    }
+
+    private void retryDnsQuery(DnsQuery dnsQuery) {
+        if (dnsQuery.attempts >= dnsMaxAttempts) {
+            expireDnsQuery(dnsQuery);
+            return;
+        }
+
+        try {
+            sendDnsQuery(dnsQuery);
+        } catch (IOException io) {
+            // The timer is still armed, the next attempt tries another upstream
+        }
+        dnsRetransmits.increment();
+    }
+
+    private void sendDnsQuery(DnsQuery dnsQuery) throws IOException {
+        DnsUpstreams.Upstream upstream = dnsUpstreams.select();
+        long timeout = Math.max(dnsRetransmitTimeout << dnsQuery.attempts, dnsUpstreams.retransmitTimeout(upstream));
+
+        dnsQuery.upstream = upstream;
+        dnsQuery.sentAt = System.nanoTime();
+        dnsQuery.attempts++;
+        dnsQuery.timeout = timers.schedule(timeout, TimeUnit.NANOSECONDS, () -> retransmitDnsQuery(dnsQuery));
+
+        dnsChannel.send(encodeQuery(dnsQuery), upstream.address);
+        dnsQueriesSent.increment();
+    }
+
+    private void expireDnsQuery(DnsQuery dnsQuery) {
+        dnsQuery.timeout = null;
+        if (dnsQuery.tcpConnection != null)
+            completeDnsTcpQuery(dnsQuery);
+
+        dnsQueriesExpired.increment();
+        dnsQueries.remove(dnsQuery.id);
+        dnsQueriesByName.remove(dnsQuery.key());
+
+        for (Session session : dnsQuery.waitingSessions)
+            deliverAddresses(session, dnsQuery.type, Collections.emptyList());
+    }
+
+    private void enterState(Session session, SessionState state) {
+        session.state = state;
+        session.lastActivity = System.nanoTime();
+        timers.cancel(session.deadline);
+        session.deadline = null;
+
+        Long timeout = sessionTimeouts.get(state);
+        if ((timeout != null) && (timeout > 0))
+            session.deadline = timers.schedule(timeout, TimeUnit.MILLISECONDS, () -> expireSession(session, state));
+    }
+
+    private void expireSession(Session session, SessionState state) {
+        session.deadline = null;
+        if (session.isClosed() || (session.state != state))
+            return;
+
+        if (state == SessionState.RELAYING) {
+            long idleTimeout = TimeUnit.MILLISECONDS.toNanos(sessionTimeouts.get(state));
+            long idleTime = System.nanoTime() - session.lastActivity;
+            if (idleTime < idleTimeout) {
+                session.deadline = timers.schedule(idleTimeout - idleTime, TimeUnit.NANOSECONDS,
+                        () -> expireSession(session, state));
+                return;
+            }
+        }
+
+        sessionEvictions.get(state).increment();
+        try {
+            if (state == SessionState.REQUEST)
+                sendErrorToClient(session, (byte) 0x01);
+            else if (state == SessionState.CONNECTING)
+                sendErrorToClient(session, (byte) 0x04);
+        } catch (IOException ignored) {
+            // Intentionally ignored
+        }
+        session.close();
+    }
+
+    private void processSelectedKeys() throws IOException {
+        Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+        while(keyIterator.hasNext()) {
+            SelectionKey key = keyIterator.next();
+            keyIterator.remove();
+
+            if (!key.isValid())
+                continue;
+
+            // A bug triggered by one channel must not take down the whole loop
+            try {
+                handleKeyEvents(key);
+            } catch (IOException | RuntimeException e) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Session)
+                    ((Session) attachment).close();
+
+                System.out.println("Something gone wrong: " + e);
+            }
+        }
+    }
+
+    private void handleKeyEvents(SelectionKey key) throws IOException {
+        if (key.isAcceptable()) {
+            handleAccept(key);
+            return;
+        }
+
+        if (key.isReadable() && key.channel() == dnsChannel) {
+            handleDnsRead();
+            return;
+        }
+
+        if (key.attachment() instanceof DnsTcpConnection) {
+            handleDnsTcpEvent(key);
+            return;
+        }
+
+        if (key.isReadable()) {
+            handleRead(key);
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handleWrite(key);
+        }
+
+        if (key.isValid() && key.isConnectable()) {
+            handleRemoteConnect(key);
+        }
+    }
+
+    private void handleAccept(SelectionKey key) {
+        acceptor.acceptBatch(key, this::registerClient);
+    }
+
+    private void handleDnsRead() throws IOException {
+        // Drain several datagrams per wakeup, but leave room for the other channels of the loop
+        for (int i = 0; i < dnsReadBudget; i++) {
+            dnsReceiveBuffer.clear();
+            SocketAddress sender = dnsChannel.receive(dnsReceiveBuffer);
+            if (sender == null)
+                return;
+
+            dnsReceiveBuffer.flip();
+            handleDnsDatagram(sender);
+        }
+    }
+
+    private void handleDnsDatagram(SocketAddress sender) {
+        // Only the configured resolvers may answer, anything else could be a spoofing attempt
+        DnsUpstreams.Upstream upstream = dnsUpstreams.find(sender);
+        if (upstream == null) {
+            dnsResponsesIgnored.increment();
+            return;
+        }
+
+        handleDnsResponse(dnsReceiveBuffer, upstream, false);
+    }
+
+    private void handleDnsResponse(ByteBuffer message, DnsUpstreams.Upstream upstream, boolean isTcp) {
+        if (message.remaining() < 2)
+            return;
+
+        DnsQuery dnsQuery = dnsQueries.get(DnsCodec.readId(message));
+        if (dnsQuery == null)
+            return;
+
+        // A reply to another question is either spoofed or broken; the query keeps waiting
+        if (!matchesQuestion(message, dnsQuery)) {
+            dnsResponsesIgnored.increment();
+            return;
+        }
+
+        // A late datagram for a query that has already moved to TCP is only a duplicate
+        if (dnsQuery.tcpConnection != null) {
+            if (!isTcp)
+                return;
+            completeDnsTcpQuery(dnsQuery);
+        }
+
+        timers.cancel(dnsQuery.timeout);
+        dnsQuery.timeout = null;
+
+        // Another upstream may well answer, so a failure is retried the way a timeout is
+        if (DnsCodec.isServerFailure(message)) {
+            dnsServerFailures.increment();
+            dnsUpstreams.onFailure(upstream);
+            retryDnsQuery(dnsQuery);
+            return;
+        }
+
+        dnsUpstreams.onResponse(upstream);
+
+        // Karn's rule: after a retransmission it is unknown which datagram was answered
+        if (!isTcp && (dnsQuery.attempts == 1))
+            dnsUpstreams.onAnswer(upstream, System.nanoTime() - dnsQuery.sentAt);
+
+        if (!isTcp && DnsCodec.isTruncated(message)) {
+            retryOverTcp(dnsQuery, upstream);
+            return;
+        }
+
+        dnsQueries.remove(dnsQuery.id);
+        dnsQueriesByName.remove(dnsQuery.key());
+
+        DnsAnswer answer = DnsCodec.readAnswer(message, dnsQuery.type);
+        if (answer == null) {
+            dnsCodecFallbacks.increment();
+            answer = parseDnsMessage(message, dnsQuery.type);
+        }
+
+        // Each link is cached on its own TTL, the addresses under the canonical name they belong to
+        for (DnsAnswer.Alias alias : answer.aliases)
+            dnsCache.putAlias(alias.name, alias.target, alias.ttl);
+
+        String owner = (answer.canonicalName() != null) ? answer.canonicalName() : dnsQuery.host;
+        if (!answer.isEmpty()) {
+            dnsCache.put(owner, dnsQuery.type, answer.addresses, answer.ttl);
+        } else if (answer.negativeTtl >= 0) {
+            dnsCache.putNegative(owner, dnsQuery.type, answer.negativeTtl);
+        }
+
+        if (answer.isIncomplete) {
+            followAliasChain(dnsQuery, answer);
+            return;
+        }
+
+        for (Session session : dnsQuery.waitingSessions)
+            deliverAddresses(session, dnsQuery.type, answer.addresses);
+    }
+
+    // The resolver answered with aliases only, so the canonical name is asked for directly;
+    // the length cap stops alias loops that span several answers
+    private void followAliasChain(DnsQuery dnsQuery, DnsAnswer answer) {
+        int chainLength = dnsQuery.chainLength + answer.aliases.size();
+        dnsAliasRequeries.increment();
+
+        for (Session session : dnsQuery.waitingSessions) {
+            if (chainLength >= DnsCodec.MAX_CHAIN_LENGTH) {
+                deliverAddresses(session, dnsQuery.type, Collections.emptyList());
+            } else {
+                lookupAddresses(session, answer.canonicalName(), dnsQuery.type, chainLength);
+            }
+        }
+    }
+
+    // The answer did not fit into a datagram: ask the same upstream again over TCP, on a
+    // connection that stays open for later truncated answers and carries them pipelined
+    private void retryOverTcp(DnsQuery dnsQuery, DnsUpstreams.Upstream upstream) {
+        dnsTcpRetries.increment();
+        try {
+            DnsTcpConnection connection = dnsTcpConnections.get(upstream);
+            if (connection == null) {
+                connection = new DnsTcpConnection(upstream);
+                connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                dnsTcpConnections.put(upstream, connection);
+            }
+
+            timers.cancel(connection.idleTimeout);
+            connection.idleTimeout = null;
+            dnsQuery.tcpConnection = connection;
+            dnsQuery.timeout = timers.schedule(DNS_TCP_TIMEOUT, TimeUnit.MILLISECONDS, () -> expireDnsQuery(dnsQuery));
+
+            if (connection.enqueue(dnsQuery.id, encodeQuery(dnsQuery)) && connection.channel.isConnected())
+                updateKeyInterest(connection.key, true, SelectionKey.OP_WRITE);
+        } catch (IOException io) {
+            expireDnsQuery(dnsQuery);
+        }
+    }
+
+    private void completeDnsTcpQuery(DnsQuery dnsQuery) {
+        DnsTcpConnection connection = dnsQuery.tcpConnection;
+        connection.pendingIds.remove(dnsQuery.id);
+        dnsQuery.tcpConnection = null;
+
+        if (connection.pendingIds.isEmpty() && (connection.idleTimeout == null) && connection.channel.isOpen()) {
+            connection.idleTimeout = timers.schedule(DNS_TCP_IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+                    () -> closeDnsTcpConnection(connection));
+        }
+    }
+
+    private void handleDnsTcpEvent(SelectionKey key) {
+        DnsTcpConnection connection = (DnsTcpConnection) key.attachment();
+        try {
+            if (key.isConnectable() && connection.channel.finishConnect())
+                key.interestOps(SelectionKey.OP_READ | (connection.hasOutput() ? SelectionKey.OP_WRITE : 0));
+
+            if (key.isValid() && key.isWritable() && connection.flush())
+                updateKeyInterest(key, false, SelectionKey.OP_WRITE);
+
+            if (key.isValid() && key.isReadable()) {
+                if (!connection.read(message -> handleDnsResponse(message, connection.upstream, true)))
+                    closeDnsTcpConnection(connection);
+            }
+        } catch (IOException io) {
+            closeDnsTcpConnection(connection);
+        }
+    }
+
+    // An upstream may close an idle connection just as a query is queued on it (RFC 7766),
+    // so queries still waiting are sent once more on a fresh connection; those already
+    // resent fail right away instead of waiting out their timeout
+    private void closeDnsTcpConnection(DnsTcpConnection connection) {
+        timers.cancel(connection.idleTimeout);
+        connection.idleTimeout = null;
+        connection.close();
+        dnsTcpConnections.remove(connection.upstream, connection);
+
+        for (Integer id : new ArrayList<>(connection.pendingIds)) {
+            DnsQuery dnsQuery = dnsQueries.get(id);
+            if ((dnsQuery == null) || (dnsQuery.tcpConnection != connection))
+                continue;
+
+            timers.cancel(dnsQuery.timeout);
+            if (dnsQuery.isTcpResent) {
+                expireDnsQuery(dnsQuery);
+            } else {
+                dnsQuery.isTcpResent = true;
+                dnsQuery.tcpConnection = null;
+                retryOverTcp(dnsQuery, connection.upstream);
+            }
+        }
+        connection.pendingIds.clear();
+    }
+
+    private boolean matchesQuestion(ByteBuffer message, DnsQuery dnsQuery) {
+        if (DnsCodec.matchesQuestion(message, dnsQuery.host, dnsQuery.type))
+            return true;
+
+        // Error replies often come without the question; they carry nothing to cache
+        if (!DnsCodec.hasQuestion(message))
+            return DnsCodec.isServerFailure(message);
+
+        // Names with escapes or non-ASCII characters were encoded by dnsjava, so compare its way
+        try {
+            org.xbill.DNS.Record question = new Message(message.duplicate()).getQuestion();
+            return (question != null) && (question.getType() == dnsQuery.type) && (question.getDClass() == DClass.IN)
+                    && question.getName().equals(Name.fromString(dnsQuery.host + "."));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private DnsAnswer parseDnsMessage(ByteBuffer buffer, int type) {
+        try {
+            return DnsAnswer.fromMessage(new Message(buffer), type);
+        } catch (IOException | RuntimeException e) {
+            return new DnsAnswer(Collections.emptyList(), 0, -1);
+        }
+    }
+
+    private void completeResolving(Session session, List<InetAddress> addresses) {
+        try {
+            if (addresses.isEmpty()) {
+                sendErrorToClient(session, (byte) 0x04);
+                session.close();
+            } else {
+                startConnection(session, addresses);
+            }
+        } catch (IOException io) {
+            session.close();
+        }
+    }
+
+    // A and AAAA lookups run in parallel. The race starts once both have answered, as soon as
+    // AAAA brings addresses, or a resolution delay after A did (RFC 8305, section 3), so an
+    // upstream that drops AAAA queries does not hold up the connection
+    private void resolveHostName(Session session) {
+        String host = DnsCache.keyOf(session.targetHost);
+        session.pendingLookups = 2;
+        session.resolvedAddresses = new ArrayList<>();
+        enterState(session, SessionState.RESOLVING);
+
+        lookupAddresses(session, host, Type.A, 0);
+        lookupAddresses(session, host, Type.AAAA, 0);
+    }
+
+    private void lookupAddresses(Session session, String name, int type, int chainLength) {
+        if (session.isClosed())
+            return;
+
+        // Aliases learnt earlier lead straight to the canonical name
+        String host = dnsCache.canonicalName(name);
+        List<InetAddress> cached = dnsCache.lookup(host, type);
+        if (cached != null) {
+            deliverAddresses(session, type, cached);
+            return;
+        }
+
+        DnsQuery pending = dnsQueriesByName.get(queryKey(host, type));
+        if (pending != null) {
+            pending.waitingSessions.add(session);
+            dnsQueriesCoalesced.increment();
+            return;
+        }
+
+        try {
+            DnsQuery dnsQuery = startDnsQuery(host, type, chainLength);
+            dnsQuery.waitingSessions.add(session);
+        } catch (IOException e) {
+            deliverAddresses(session, type, Collections.emptyList());
+        }
+    }
+
+    // Background refresh asked for by the cache; the answer only renews the cache entry
+    private void refreshHostName(String host, int type) {
+        if (dnsQueriesByName.containsKey(queryKey(host, type)))
+            return;
+
+        try {
+            startDnsQuery(host, type, 0);
+        } catch (IOException ignored) {
+            // Intentionally ignored, the entry is simply not renewed
+        }
+    }
+
+    private DnsQuery startDnsQuery(String host, int type, int chainLength) throws IOException {
+        DnsQuery dnsQuery = new DnsQuery(host, type, chainLength);
+        dnsQuery.id = dnsQueries.add(dnsQuery);
+        if (dnsQuery.id < 0)
+            throw new IOException("All DNS query IDs are already in use");
+
+        try {
+            sendDnsQuery(dnsQuery);
+        } catch (IOException io) {
+            timers.cancel(dnsQuery.timeout);
+            dnsQueries.remove(dnsQuery.id);
+            throw io;
+        }
+
+        dnsQueriesByName.put(dnsQuery.key(), dnsQuery);
+        return dnsQuery;
+    }
+
+    private void deliverAddresses(Session session, int type, List<InetAddress> addresses) {
+        if (session.isClosed() || (session.pendingLookups == 0))
+            return;
+
+        session.pendingLookups--;
+        if (session.state == SessionState.CONNECTING) {
+            addLateCandidates(session, addresses);
+            return;
+        }
+        if (session.state != SessionState.RESOLVING)
+            return;
+
+        session.resolvedAddresses.addAll(addresses);
+        if ((session.pendingLookups == 0) || (!addresses.isEmpty() && (type == Type.AAAA))) {
+            timers.cancel(session.resolutionTimer);
+            session.resolutionTimer = null;
+            completeResolving(session, session.resolvedAddresses);
+        } else if (!addresses.isEmpty() && (session.resolutionTimer == null)) {
+            session.resolutionTimer = timers.schedule(connectResolutionDelay, TimeUnit.MILLISECONDS,
+                    () -> expireResolutionDelay(session));
+        }
+    }
+
+    private void expireResolutionDelay(Session session) {
+        session.resolutionTimer = null;
+        if (session.isClosed() || (session.state != SessionState.RESOLVING))
+            return;
+
+        completeResolving(session, session.resolvedAddresses);
+    }
+
+    // Addresses of the family that answered after the race started join the untried ones
+    private void addLateCandidates(Session session, List<InetAddress> addresses) {
+        List<InetAddress> untried = new ArrayList<>(addresses);
+        untried.addAll(session.candidateAddresses.subList(session.nextCandidate, session.candidateAddresses.size()));
+
+        List<InetAddress> candidates = new ArrayList<>(session.candidateAddresses.subList(0, session.nextCandidate));
+        candidates.addAll(interleaveFamilies(untried));
+        session.candidateAddresses = candidates;
+
+        try {
+            if (session.connectAttempts.isEmpty()) {
+                // Every earlier attempt has already failed: try the new addresses or give up now
+                startNextAttempt(session, session.connectFailureReply);
+            } else if ((session.attemptTimer == null) && (session.nextCandidate < candidates.size())) {
+                // Nothing schedules the next attempt yet; it starts once the running one has had its delay
+                long delay = TimeUnit.MILLISECONDS.toNanos(connectAttemptDelay) - (System.nanoTime() - session.lastAttemptAt);
+                if (delay <= 0) {
+                    startNextAttempt(session, session.connectFailureReply);
+                } else {
+                    session.attemptTimer = timers.schedule(delay, TimeUnit.NANOSECONDS, () -> expireConnectAttempt(session));
+                }
+            }
+        } catch (IOException io) {
+            session.close();
+        }
+    }
+
+    private ByteBuffer encodeQuery(DnsQuery dnsQuery) throws IOException {
+        if (DnsCodec.writeQuery(dnsSendBuffer, dnsQuery.id, dnsQuery.host, dnsQuery.type))
+            return dnsSendBuffer;
+
+        org.xbill.DNS.Record record = org.xbill.DNS.Record.newRecord(Name.fromString(dnsQuery.host + "."),
+                dnsQuery.type, DClass.IN);
+        Message msg = Message.newQuery(record);
+        msg.getHeader().setID(dnsQuery.id);
+        return ByteBuffer.wrap(msg.toWire());
+    }
+
+    private static String queryKey(String host, int type) {
+        return host + '/' + Type.string(type);
+    }
+
+    private void handleRead(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        if ((session == null) || session.isClosed() || !key.isValid())
+            return;
+
+        if (key.channel() == session.client)
+            handleClientRead(session);
+        else if (key.channel() == session.remote)
+            handleRemoteRead(session);
+    }
+
+    private void handleClientRead(Session session) throws IOException {
+        if (session.isClosed())
+            return;
+
+        if ((session.state == SessionState.GREETING) || (session.state == SessionState.REQUEST)) {
+            if (!readMessageBuffer(session)) {
+                return;
+            }
+
+            session.messagesBuff.flip();
+
+            if (session.state == SessionState.GREETING)
+                handleGreeting(session);
+
+            if (session.state == SessionState.REQUEST)
+                handleRequest(session);
+
+            if (!session.isClosed())
+                session.messagesBuff.compact();
+            return;
+        }
+
+        if (session.state == SessionState.RELAYING) {
+            handleRelayingRead(session, session.client, session.clientToRemoteBuff,
+                    session.clientKey, session.remoteKey, true);
+        }
+    }
+
+    private boolean readMessageBuffer(Session session) throws IOException {
+        int readBytes = session.client.read(session.messagesBuff);
+        if (readBytes == -1) {
+            session.close();
+            return false;
+        }
+        return readBytes > 0;
+    }
+
+    private boolean handleGreeting(Session session) throws IOException {
+        ByteBuffer buff = session.messagesBuff;
+        if (buff.remaining() < 2)
+            return false;
+
+        buff.mark();
+        byte version = buff.get();
+        byte methodsNumber = buff.get();
+        if (buff.remaining() < (methodsNumber & 0xFF)) {
+            buff.reset();
+            return false;
+        }
+
+        boolean isAuth = false;
+        for (int i = 0; i < (methodsNumber & 0xFF); i++) {
+            if (buff.get() == 0x00) {
+                isAuth = true;
+            }
+        }
+
+        if (!isAuth) {
+            sendAuthMethod(session, (byte) 0xFF);
+            session.close();
+            return false;
+        }
+
+        sendAuthMethod(session, (byte) 0x00);
+        enterState(session, SessionState.REQUEST);
+
+        return true;
+    }
+
+    private boolean handleRequest(Session session) throws IOException {
+        ByteBuffer buff = session.messagesBuff;
+        if (buff.remaining() < 10)
+            return false;
+
+        buff.mark();
+        byte version = buff.get();
+        byte code = buff.get();
+        buff.get(); // Skip reserved byte
+        byte type = buff.get();
+
+        if ((version != 0x05) || (code != 0x01)) {
+            sendErrorToClient(session, (byte) 0x07);
+            session.close();
+            return false;
+        }
+
+        if (type == 0x01) {
+            return handleAddressRequest(session, buff, 4);
+        } else if (type == (byte) 0x03) {
+            return handleDomainNameRequest(session, buff);
+        } else if (type == (byte) 0x04) {
+            return handleAddressRequest(session, buff, 16);
+        } else {
+            sendErrorToClient(session, (byte) 0x08);
+            session.close();
+            return false;
+        }
+    }
+
+    private boolean handleAddressRequest(Session session, ByteBuffer buff, int addressLength) throws IOException {
+        if (buff.remaining() < (addressLength + 2)) {
+            buff.reset();
+            return false;
+        }
+
+        byte[] ipAddress = new byte[addressLength];
+        buff.get(ipAddress);
+        int port = readPort(buff);
+
+        try {
+            InetAddress address = InetAddress.getByAddress(ipAddress);
+            session.targetHost = address.getHostAddress();
+            session.targetPort = port;
+
+            startConnection(session, Collections.singletonList(address));
+            return true;
+        } catch (UnknownHostException e) {
+            sendErrorToClient(session, (byte) 0x04);
+            session.close();
+            return false;
+        }
+    }
+
+    private boolean handleDomainNameRequest(Session session, ByteBuffer buff) throws IOException {
+        if (buff.remaining() < 1) {
+            buff.reset();
+            return false;
+        }
+
+        byte len = buff.get();
+        if (buff.remaining() < (len + 2)) {
+            buff.reset();
+            return false;
+        }
+
+        byte[] byteName = new byte[len];
+        buff.get(byteName);
+        int port = readPort(buff);
+
+        session.targetHost = new String(byteName, StandardCharsets.UTF_8);
+        session.targetPort = port;
+
+        resolveHostName(session);
+        return true;
+    }
+
+    private int readPort(ByteBuffer buff) {
+        return ((buff.get() & 0xFF) << 8) | (buff.get() & 0xFF);
+    }
+
+    // Happy Eyeballs (RFC 8305): a new attempt starts every connectAttemptDelay, or right away when
+    // the previous one fails, until a socket connects; the first connected socket wins the race
+    private void startConnection(Session session, List<InetAddress> addresses) throws IOException {
+        if (session.isClosed())
+            return;
+
+        session.candidateAddresses = interleaveFamilies(addresses);
+        session.nextCandidate = 0;
+        session.connectFailureReply = 0x04;
+        session.connectStartedAt = System.nanoTime();
+        enterState(session, SessionState.CONNECTING);
+
+        startNextAttempt(session, (byte) 0x04);
+    }
+
+    // IPv6 first, then alternating families, so a broken path of one family costs a single attempt delay
+    private static List<InetAddress> interleaveFamilies(List<InetAddress> addresses) {
+        List<InetAddress> ipv6 = new ArrayList<>();
+        List<InetAddress> ipv4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                ipv6.add(address);
+            } else {
+                ipv4.add(address);
+            }
+        }
+
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(ipv6.size(), ipv4.size()); i++) {
+            if (i < ipv6.size())
+                ordered.add(ipv6.get(i));
+            if (i < ipv4.size())
+                ordered.add(ipv4.get(i));
+        }
+        return ordered;
+    }
+
+    private void startNextAttempt(Session session, byte failureReply) throws IOException {
+        timers.cancel(session.attemptTimer);
+        session.attemptTimer = null;
+
+        while (session.nextCandidate < session.candidateAddresses.size()) {
+            InetAddress address = session.candidateAddresses.get(session.nextCandidate++);
+            SelectionKey key;
+            boolean isConnected;
+
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                connectAttempts.increment();
+                isConnected = channel.connect(new InetSocketAddress(address, session.targetPort));
+                key = channel.register(selector, SelectionKey.OP_CONNECT, session);
+            } catch (IOException | UnresolvedAddressException | UnsupportedAddressTypeException e) {
+                channel.close();
+                connectFailures.increment();
+                failureReply = connectFailureReply(e);
+                continue;
+            }
+
+            session.connectAttempts.add(key);
+            session.lastAttemptAt = System.nanoTime();
+            if (isConnected) {
+                // Finished from the next select rather than here: the request is still being
+                // parsed out of the message buffer that completing the connection releases.
+                // OP_CONNECT never fires for a connected channel, OP_WRITE fires at once.
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (session.nextCandidate < session.candidateAddresses.size()) {
+                session.attemptTimer = timers.schedule(connectAttemptDelay, TimeUnit.MILLISECONDS,
+                        () -> expireConnectAttempt(session));
+            }
+            return;
+        }
+
+        // A lookup still in flight may bring addresses of the other family
+        session.connectFailureReply = failureReply;
+        if (session.connectAttempts.isEmpty() && (session.pendingLookups == 0)) {
+            sendErrorToClient(session, failureReply);
+            session.close();
+        }
+    }
+
+    private void expireConnectAttempt(Session session) {
+        session.attemptTimer = null;
+        if (session.isClosed() || (session.state != SessionState.CONNECTING))
+            return;
+
+        try {
+            startNextAttempt(session, (byte) 0x04);
+        } catch (IOException io) {
+            session.close();
+        }
+    }
+
+    private static byte connectFailureReply(Exception e) {
+        if (e instanceof ConnectException)
+            return 0x05;
+        if (e instanceof UnsupportedAddressTypeException)
+            return 0x08;
+        return 0x04;
+    }
+
+    private void handleRemoteRead(Session session) throws IOException {
+        if (session.isClosed())
+            return;
+
+        handleRelayingRead(session, session.remote, session.remoteToClientBuff,
+                session.remoteKey, session.clientKey, false);
+    }
+
+    private void handleRelayingRead(Session session, SocketChannel channel, RingBuffer buffer,
+                                    SelectionKey currentKey, SelectionKey oppositeKey, boolean isClient) throws IOException {
+        session.lastActivity = System.nanoTime();
+        SocketChannel oppositeChannel = isClient ? session.remote : session.client;
+
+        // Keep reading while there is data, but give up the loop to other sessions
+        // once the budget is spent; the key stays readable for the next round
+        long budget = relayReadBudget;
+        while (budget > 0) {
+            long readBytes = buffer.readFrom(channel);
+            if (readBytes == -1) {
+                updateKeyInterest(currentKey, false, SelectionKey.OP_READ);
+
+                if (isClient) {
+                    session.endClientChannel = true;
+                } else {
+                    session.endRemoteChannel = true;
+                }
+                finishOnDrain(session, isClient);
+                return;
+            }
+
+            if (readBytes == 0)
+                return;
+
+            budget -= readBytes;
+
+            // Forward right away unless the opposite socket is already known to be full
+            // or a handshake reply still has to go out first
+            boolean isWritePending = (oppositeKey.interestOps() & SelectionKey.OP_WRITE) != 0;
+            boolean isReplyPending = !isClient && (session.pendingReply != null);
+            if (isWritePending || isReplyPending || !writeRelayBuffer(session, oppositeChannel, buffer)) {
+                updateKeyInterest(oppositeKey, true, SelectionKey.OP_WRITE);
+            }
+
+            if (buffer.size() >= highWatermark(buffer)) {
+                pauseRead(session, currentKey, isClient);
+                return;
+            }
+        }
+    }
+
+    private int highWatermark(RingBuffer buffer) {
+        return Math.max(1, (int) ((long) buffer.capacity() * relayHighWatermarkPercent / 100));
+    }
+
+    private int lowWatermark(RingBuffer buffer) {
+        return (int) ((long) buffer.capacity() * relayLowWatermarkPercent / 100);
+    }
+
+    private void pauseRead(Session session, SelectionKey key, boolean isClient) {
+        updateKeyInterest(key, false, SelectionKey.OP_READ);
+        if (isClient) {
+            session.clientReadPaused = true;
+        } else {
+            session.remoteReadPaused = true;
+        }
+        relayPauses.increment();
+    }
+
+    private void resumeRead(Session session, SelectionKey key, boolean isClient) {
+        updateKeyInterest(key, true, SelectionKey.OP_READ);
+        if (isClient) {
+            session.clientReadPaused = false;
+        } else {
+            session.remoteReadPaused = false;
+        }
+        relayResumes.increment();
+    }
+
+    private void finishOnDrain(Session session, boolean isClient) throws IOException {
+        RingBuffer buffer = isClient ? session.clientToRemoteBuff : session.remoteToClientBuff;
+        if ((buffer == null) || !buffer.isEmpty())
+            return;
+        // The handshake reply goes out before the client side is shut down; once it is
+        // flushed, handleClientWrite gets back here
+        if (!isClient && (session.pendingReply != null))
+            return;
+
+        SocketChannel oppositeChannel = isClient ? session.remote : session.client;
+        oppositeChannel.shutdownOutput();
+        session.releaseRelayBuffer(isClient);
+
+        if ((session.clientToRemoteBuff == null) && (session.remoteToClientBuff == null))
+            session.close();
+    }
+
+    private void updateKeyInterest(SelectionKey key, boolean add, int ops) {
+        if (key != null && key.isValid()) {
+            if (add) {
+                key.interestOps(key.interestOps() | ops);
+            } else {
+                key.interestOps(key.interestOps() & ~ops);
+            }
+        }
+    }
+
+    private void handleRemoteConnect(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        if ((session == null) || !key.isValid() || session.isClosed())
+            return;
+
+        if (session.state != SessionState.CONNECTING)
+            return;
+
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (!channel.finishConnect())
+                return;
+        } catch (IOException io) {
+            connectFailures.increment();
+            session.abandonConnectAttempt(key);
+            startNextAttempt(session, connectFailureReply(io));
+            return;
+        }
+
+        completeConnection(session, key);
+    }
+
+    private void completeConnection(Session session, SelectionKey key) throws IOException {
+        session.connectAttempts.remove(key);
+        session.cancelConnectAttempts();
+        session.remote = (SocketChannel) key.channel();
+        session.remoteKey = key;
+        connectTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - session.connectStartedAt));
+
+        try {
+            session.allocateRelayBuffers(relayMinBufferSize);
+        } catch (IOException io) {
+            sendErrorToClient(session, (byte) 0x01);
+            session.close();
+            return;
+        }
+
+        InetSocketAddress localBind = (InetSocketAddress) session.remote.getLocalAddress();
+        sendResponseToClient(session, localBind.getAddress(), localBind.getPort());
+        enterState(session, SessionState.RELAYING);
+
+        updateKeyInterest(session.clientKey, true, SelectionKey.OP_READ);
+        session.remoteKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void handleWrite(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        if ((session == null) || session.isClosed() || !key.isValid())
+            return;
+
+        if (key.channel() == session.client)
+            handleClientWrite(session);
+        else if (key.channel() == session.remote)
+            handleRemoteWrite(session);
+        else if (session.state == SessionState.CONNECTING)
+            handleRemoteConnect(key);
+    }
+
+    private void handleClientWrite(Session session) throws IOException {
+        if (!flushPendingReply(session))
+            return;
+
+        handleChannelWrite(session, session.client, session.remoteToClientBuff,
+                session.clientKey, session.remoteKey, false);
+    }
+
+    private void handleRemoteWrite(Session session) throws IOException {
+        handleChannelWrite(session, session.remote, session.clientToRemoteBuff,
+                session.remoteKey, session.clientKey, true);
+    }
+
+    private void handleChannelWrite(Session session, SocketChannel channel, RingBuffer buffer,
+                                    SelectionKey currentKey, SelectionKey oppositeKey, boolean isClient) throws IOException {
+        if (buffer == null) {
+            updateKeyInterest(currentKey, false, SelectionKey.OP_WRITE);
+            return;
+        }
+
+        if (writeRelayBuffer(session, channel, buffer)) {
+            updateKeyInterest(currentKey, false, SelectionKey.OP_WRITE);
+        }
+
+        boolean isSourceEnded = isClient ? session.endClientChannel : session.endRemoteChannel;
+        boolean isSourcePaused = isClient ? session.clientReadPaused : session.remoteReadPaused;
+        if (isSourceEnded) {
+            finishOnDrain(session, isClient);
+        } else if (isSourcePaused && (buffer.size() <= lowWatermark(buffer))) {
+            resumeRead(session, oppositeKey, isClient);
+        }
+    }
+
+    // Returns true if everything buffered has been written
+    private boolean writeRelayBuffer(Session session, SocketChannel channel, RingBuffer buffer) throws IOException {
+        if (buffer.writeTo(channel) > 0)
+            session.lastActivity = System.nanoTime();
+
+        if (!buffer.isEmpty())
+            return false;
+
+        adaptRelayBuffer(session, buffer);
+        return true;
+    }
+
+    // Sessions start with small buffers; a drained buffer doubles after repeated full reads
+    // and halves after a long run of small ones, staying within the configured bounds
+    private void adaptRelayBuffer(Session session, RingBuffer buffer) {
+        int capacity = buffer.capacity();
+        if ((buffer.fullReads() >= RELAY_GROW_FULL_READS) && (capacity < relayMaxBufferSize)) {
+            if (session.resizeRelayBuffer(buffer, capacity << 1))
+                relayBufferGrows.increment();
+        } else if ((buffer.smallReads() >= RELAY_SHRINK_SMALL_READS) && (capacity > relayMinBufferSize)) {
+            if (session.resizeRelayBuffer(buffer, capacity >>> 1))
+                relayBufferShrinks.increment();
+        }
+    }
+
+    private boolean flushPendingReply(Session session) throws IOException {
+        if (session.pendingReply == null)
+            return true;
+
+        session.client.write(session.pendingReply);
+        if (session.pendingReply.hasRemaining())
+            return false;
+
+        session.pendingReply = null;
+        if ((session.remoteToClientBuff == null) || session.remoteToClientBuff.isEmpty())
+            updateKeyInterest(session.clientKey, false, SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    private void sendAuthMethod(Session session, byte method) throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(new byte[] { (byte) 0x05, method });
+        writeToClient(session, out);
+    }
+
+    private void sendErrorToClient(Session session, byte errorCode) throws IOException {
+        ByteBuffer error = ByteBuffer.allocate(10);
+        error.put((byte) 0x05);
+        error.put(errorCode);
+        error.put((byte) 0x00);
+        error.put((byte) 0x01);
+        error.put(new byte[] { 0, 0, 0, 0 });
+        error.putShort((short) 0);
+        error.flip();
+
+        writeToClient(session, error);
+    }
+
+    private void sendResponseToClient(Session session, InetAddress address, int fromPort) throws IOException {
+        byte[] bindAddress = address.getAddress();
+        ByteBuffer response = ByteBuffer.allocate(6 + bindAddress.length);
+        response.put((byte) 0x05);
+        response.put((byte) 0x00);
+        response.put((byte) 0x00);
+        response.put((bindAddress.length == 16) ? (byte) 0x04 : (byte) 0x01);
+        response.put(bindAddress);
+        response.putShort((short) fromPort);
+        response.flip();
+
+        writeToClient(session, response);
+    }
+
+    private void writeToClient(Session session, ByteBuffer data) throws IOException {
+        if (session.pendingReply == null)
+            session.client.write(data);
+
+        if (data.hasRemaining()) {
+            session.appendPendingReply(data);
+            updateKeyInterest(session.clientKey, true, SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package socks_proxy;
+
+import java.util.concurrent.atomic.*;
+
+// Lock-free histogram of positive values with log-linear buckets: four buckets per power
+// of two, so a reported percentile is within 25% of the recorded value
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+
+    void record(long value) {
+        counts.incrementAndGet(bucketOf(Math.max(1, value)));
+        total.increment();
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    // Lower bound of the bucket holding the given percentile, or 0 if nothing was recorded
+    long percentile(double percent) {
+        long recorded = total.sum();
+        if (recorded == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(recorded * percent / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= Math.max(1, rank))
+                return lowerBoundOf(bucket);
+        }
+        return lowerBoundOf(counts.length() - 1);
+    }
+
+    private static int bucketOf(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude < SUB_BUCKET_BITS)
+            return (int) value;
+
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return magnitude * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBoundOf(int bucket) {
+        int magnitude = bucket / SUB_BUCKETS;
+        if (magnitude < SUB_BUCKET_BITS)
+            return bucket;
+
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS | subBucket) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
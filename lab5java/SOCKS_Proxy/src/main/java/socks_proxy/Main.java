@@ -12,7 +12,7 @@ public class Main {
 
         try {
             int port = Integer.parseInt(args[0]);
-            SocksProxy proxy = new SocksProxy(port);
+            SocksProxy proxy = new SocksProxy(port, ProxyConfig.fromSystemProperties());
             proxy.execute();
         }
         catch (NumberFormatException nfe) {
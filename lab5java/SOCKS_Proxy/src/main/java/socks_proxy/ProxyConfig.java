@@ -0,0 +1,173 @@
+package socks_proxy;
+
+public class ProxyConfig {
+    int workerThreads = Runtime.getRuntime().availableProcessors();
+    long bufferPoolMaxBytes = 512L * 1024 * 1024;
+    int metricsIntervalSeconds = 0;
+    String listenAddress = "";
+    boolean reusePortListeners = false;
+    int listenBacklog = 1024;
+    int acceptBatchLimit = 64;
+    int maxSessions = 10_000;
+    long admissionMaxBufferBytes = -1;
+    boolean admissionPauseAccept = false;
+
+    int relayReadBudget = 256 * 1024;
+    int relayHighWatermarkPercent = 75;
+    int relayLowWatermarkPercent = 25;
+    int relayMinBufferSize = 4 * 1024;
+    int relayMaxBufferSize = 256 * 1024;
+
+    long greetingTimeoutMillis = 10_000;
+    long requestTimeoutMillis = 10_000;
+    long connectTimeoutMillis = 10_000;
+    long connectAttemptDelayMillis = 250;
+    long connectResolutionDelayMillis = 50;
+    long idleTimeoutMillis = 300_000;
+
+    int dnsReadBudget = 64;
+    long dnsRetransmitMillis = 200;
+    int dnsMaxAttempts = 4;
+    int dnsCacheMaxEntries = 10_000;
+    long dnsCacheMinTtlSeconds = 5;
+    long dnsCacheMaxTtlSeconds = 3600;
+    int dnsCacheMaxNegativeEntries = 1_000;
+    long dnsCacheMaxNegativeTtlSeconds = 900;
+    int dnsCachePrefetchPercent = 90;
+    int dnsCachePrefetchMinHits = 2;
+    long dnsCacheStaleTtlSeconds = 0;
+
+    public static ProxyConfig fromSystemProperties() {
+        ProxyConfig config = new ProxyConfig();
+        config.workerThreads = Integer.getInteger("socks.workers", config.workerThreads);
+        config.bufferPoolMaxBytes = Long.getLong("socks.bufferPool.maxBytes", config.bufferPoolMaxBytes);
+        config.metricsIntervalSeconds = Integer.getInteger("socks.metrics.interval", config.metricsIntervalSeconds);
+        config.listenAddress = System.getProperty("socks.listener.address", config.listenAddress);
+        config.reusePortListeners = Boolean.parseBoolean(System.getProperty("socks.listener.reusePort", String.valueOf(config.reusePortListeners)));
+        config.listenBacklog = Integer.getInteger("socks.listener.backlog", config.listenBacklog);
+        config.acceptBatchLimit = Integer.getInteger("socks.listener.acceptBatch", config.acceptBatchLimit);
+        config.maxSessions = Integer.getInteger("socks.admission.maxSessions", config.maxSessions);
+        config.admissionMaxBufferBytes = Long.getLong("socks.admission.maxBufferBytes", config.admissionMaxBufferBytes);
+        config.admissionPauseAccept = Boolean.parseBoolean(System.getProperty("socks.admission.pauseAccept", String.valueOf(config.admissionPauseAccept)));
+        config.relayReadBudget = Integer.getInteger("socks.relay.readBudget", config.relayReadBudget);
+        config.relayHighWatermarkPercent = Integer.getInteger("socks.relay.highWatermark", config.relayHighWatermarkPercent);
+        config.relayLowWatermarkPercent = Integer.getInteger("socks.relay.lowWatermark", config.relayLowWatermarkPercent);
+        config.relayMinBufferSize = Integer.getInteger("socks.relay.minBuffer", config.relayMinBufferSize);
+        config.relayMaxBufferSize = Integer.getInteger("socks.relay.maxBuffer", config.relayMaxBufferSize);
+        config.greetingTimeoutMillis = Long.getLong("socks.timeout.greeting", config.greetingTimeoutMillis);
+        config.requestTimeoutMillis = Long.getLong("socks.timeout.request", config.requestTimeoutMillis);
+        config.connectTimeoutMillis = Long.getLong("socks.timeout.connect", config.connectTimeoutMillis);
+        config.connectAttemptDelayMillis = Long.getLong("socks.connect.attemptDelay", config.connectAttemptDelayMillis);
+        config.connectResolutionDelayMillis = Long.getLong("socks.connect.resolutionDelay", config.connectResolutionDelayMillis);
+        config.idleTimeoutMillis = Long.getLong("socks.timeout.idle", config.idleTimeoutMillis);
+        config.dnsReadBudget = Integer.getInteger("socks.dns.readBudget", config.dnsReadBudget);
+        config.dnsRetransmitMillis = Long.getLong("socks.dns.retransmit", config.dnsRetransmitMillis);
+        config.dnsMaxAttempts = Integer.getInteger("socks.dns.attempts", config.dnsMaxAttempts);
+        config.dnsCacheMaxEntries = Integer.getInteger("socks.dnsCache.maxEntries", config.dnsCacheMaxEntries);
+        config.dnsCacheMinTtlSeconds = Long.getLong("socks.dnsCache.minTtl", config.dnsCacheMinTtlSeconds);
+        config.dnsCacheMaxTtlSeconds = Long.getLong("socks.dnsCache.maxTtl", config.dnsCacheMaxTtlSeconds);
+        config.dnsCacheMaxNegativeEntries = Integer.getInteger("socks.dnsCache.maxNegativeEntries", config.dnsCacheMaxNegativeEntries);
+        config.dnsCacheMaxNegativeTtlSeconds = Long.getLong("socks.dnsCache.maxNegativeTtl", config.dnsCacheMaxNegativeTtlSeconds);
+        config.dnsCachePrefetchPercent = Integer.getInteger("socks.dnsCache.prefetchAt", config.dnsCachePrefetchPercent);
+        config.dnsCachePrefetchMinHits = Integer.getInteger("socks.dnsCache.prefetchMinHits", config.dnsCachePrefetchMinHits);
+        config.dnsCacheStaleTtlSeconds = Long.getLong("socks.dnsCache.staleTtl", config.dnsCacheStaleTtlSeconds);
+        config.validate();
+        return config;
+    }
+
+    private void validate() {
+        if (workerThreads < 1) {
+            System.out.println("The number of worker threads must be positive. Will be set default: 1");
+            workerThreads = 1;
+        }
+
+        if (listenBacklog < 0) {
+            System.out.println("The listen backlog cannot be negative. Will be set the system default: 0");
+            listenBacklog = 0;
+        }
+
+        if (acceptBatchLimit < 1) {
+            System.out.println("The accept batch limit must be positive. Will be set default: 1");
+            acceptBatchLimit = 1;
+        }
+
+        if (relayReadBudget < 1) {
+            System.out.println("The relay read budget must be positive. Will be set default: 1");
+            relayReadBudget = 1;
+        }
+
+        if ((relayHighWatermarkPercent < 1) || (relayHighWatermarkPercent > 100)) {
+            System.out.println("The relay high watermark must be within 1..100 percent. Will be set default: 75");
+            relayHighWatermarkPercent = 75;
+        }
+
+        if ((relayLowWatermarkPercent < 0) || (relayLowWatermarkPercent >= relayHighWatermarkPercent)) {
+            System.out.println("The relay low watermark must be below the high one. Will be set: " + (relayHighWatermarkPercent / 3));
+            relayLowWatermarkPercent = relayHighWatermarkPercent / 3;
+        }
+
+        if ((relayMinBufferSize < BufferPool.MIN_CHUNK_SIZE) || (relayMinBufferSize > BufferPool.MAX_CHUNK_SIZE)) {
+            System.out.println("The minimal relay buffer must be within " + BufferPool.MIN_CHUNK_SIZE + ".." + BufferPool.MAX_CHUNK_SIZE + " bytes. Will be set default: 4096");
+            relayMinBufferSize = 4 * 1024;
+        }
+
+        if ((relayMaxBufferSize < relayMinBufferSize) || (relayMaxBufferSize > BufferPool.MAX_CHUNK_SIZE)) {
+            System.out.println("The maximal relay buffer must be within " + relayMinBufferSize + ".." + BufferPool.MAX_CHUNK_SIZE + " bytes. Will be set: " + Math.max(relayMinBufferSize, 256 * 1024));
+            relayMaxBufferSize = Math.max(relayMinBufferSize, 256 * 1024);
+        }
+
+        // Buffers grow and shrink in power-of-two steps, the same classes the pool hands out
+        relayMinBufferSize = Integer.highestOneBit(relayMinBufferSize);
+        relayMaxBufferSize = Integer.highestOneBit(relayMaxBufferSize);
+
+        if (connectAttemptDelayMillis < 10) {
+            System.out.println("The connection attempt delay must be at least 10 ms (RFC 8305). Will be set: 10");
+            connectAttemptDelayMillis = 10;
+        }
+
+        if (connectResolutionDelayMillis < 0) {
+            System.out.println("The resolution delay cannot be negative. Will be set default: 50");
+            connectResolutionDelayMillis = 50;
+        }
+
+        if (dnsReadBudget < 1) {
+            System.out.println("The DNS read budget must be positive. Will be set default: 1");
+            dnsReadBudget = 1;
+        }
+
+        if (bufferPoolMaxBytes < relayMaxBufferSize) {
+            System.out.println("The buffer pool limit must hold at least one relay buffer. Will be set: " + relayMaxBufferSize);
+            bufferPoolMaxBytes = relayMaxBufferSize;
+        }
+
+        if (dnsRetransmitMillis < 1) {
+            System.out.println("The DNS retransmission timeout must be positive. Will be set default: 200");
+            dnsRetransmitMillis = 200;
+        }
+
+        if ((dnsMaxAttempts < 1) || (dnsMaxAttempts > 16)) {
+            System.out.println("The number of DNS attempts must be within 1..16. Will be set default: 4");
+            dnsMaxAttempts = 4;
+        }
+
+        if (maxSessions < 1) {
+            System.out.println("The session limit must be positive. Will be set default: 10000");
+            maxSessions = 10_000;
+        }
+
+        if ((dnsCachePrefetchPercent < 0) || (dnsCachePrefetchPercent >= 100)) {
+            System.out.println("The DNS prefetch point must be within 0..99 percent of the TTL, 0 turns it off. Will be set default: 90");
+            dnsCachePrefetchPercent = 90;
+        }
+
+        if (dnsCacheStaleTtlSeconds < 0) {
+            System.out.println("The DNS serve-stale period cannot be negative. Will be set default: 0");
+            dnsCacheStaleTtlSeconds = 0;
+        }
+
+        if (dnsCacheMinTtlSeconds > dnsCacheMaxTtlSeconds) {
+            System.out.println("The minimal DNS cache TTL is greater than the maximal one. Will be set equal to it: " + dnsCacheMaxTtlSeconds);
+            dnsCacheMinTtlSeconds = dnsCacheMaxTtlSeconds;
+        }
+    }
+}
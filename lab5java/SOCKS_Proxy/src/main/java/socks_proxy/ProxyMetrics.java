@@ -0,0 +1,76 @@
+package socks_proxy;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class ProxyMetrics {
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    // Exposes the 50th, 90th and 99th percentiles of the recorded values as gauges
+    Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> {
+            Histogram histogram = new Histogram();
+            gauge(name + ".p50", () -> histogram.percentile(50));
+            gauge(name + ".p90", () -> histogram.percentile(90));
+            gauge(name + ".p99", () -> histogram.percentile(99));
+            return histogram;
+        });
+    }
+
+    // Per-second rate of a counter since the previous sample of this gauge
+    void rate(String name, LongAdder counter) {
+        long[] last = { counter.sum(), System.nanoTime() };
+        gauge(name, () -> {
+            synchronized (last) {
+                long count = counter.sum();
+                long time = System.nanoTime();
+                long elapsed = time - last[1];
+                long rate = (elapsed > 0) ? (count - last[0]) * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+                last[0] = count;
+                last[1] = time;
+                return rate;
+            }
+        });
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null)
+            return counter.sum();
+
+        LongSupplier gauge = gauges.get(name);
+        return (gauge != null) ? gauge.getAsLong() : 0;
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+            values.put(counter.getKey(), counter.getValue().sum());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+            if (builder.length() > 0)
+                builder.append(", ");
+            builder.append(value.getKey()).append('=').append(value.getValue());
+        }
+        return builder.toString();
+    }
+}
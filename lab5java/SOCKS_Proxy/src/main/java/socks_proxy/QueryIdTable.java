@@ -0,0 +1,67 @@
+package socks_proxy;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Maps 16-bit DNS query IDs to in-flight queries. Used from a single event loop thread only.
+class QueryIdTable<T> {
+    private static final int CAPACITY = 1 << 16;
+
+    private final Object[] slots = new Object[CAPACITY];
+    // Ring of free IDs, shuffled up front and kept shuffled on every release, so that
+    // consecutive queries do not get predictable IDs
+    private final int[] freeIds = new int[CAPACITY];
+    private int freeHead = 0;
+    private int freeCount = 0;
+
+    QueryIdTable() {
+        for (int id = 1; id < CAPACITY; id++)
+            freeIds[freeCount++] = id;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = freeCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int id = freeIds[i];
+            freeIds[i] = freeIds[j];
+            freeIds[j] = id;
+        }
+    }
+
+    // Returns the ID given to the value, or -1 if every ID is in use
+    int add(T value) {
+        if (freeCount == 0)
+            return -1;
+
+        int id = freeIds[freeHead];
+        freeHead = (freeHead + 1) & (CAPACITY - 1);
+        freeCount--;
+
+        slots[id] = value;
+        return id;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int id) {
+        return (T) slots[id & (CAPACITY - 1)];
+    }
+
+    T remove(int id) {
+        T value = get(id);
+        if (value == null)
+            return null;
+
+        slots[id & (CAPACITY - 1)] = null;
+
+        // Appended as is, released IDs would come back in release order, roughly repeating the
+        // last cycle; swapping with a random free one keeps the next IDs unguessable (RFC 5452)
+        int tail = (freeHead + freeCount) & (CAPACITY - 1);
+        int other = (freeHead + ThreadLocalRandom.current().nextInt(freeCount + 1)) & (CAPACITY - 1);
+        freeIds[tail] = freeIds[other];
+        freeIds[other] = id & (CAPACITY - 1);
+        freeCount++;
+        return value;
+    }
+
+    int size() {
+        return CAPACITY - 1 - freeCount;
+    }
+}
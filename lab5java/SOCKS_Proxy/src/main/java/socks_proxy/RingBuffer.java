@@ -0,0 +1,134 @@
+package socks_proxy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Circular relay buffer over a pooled chunk. Reads and writes go through two reusable
+// views of the wrap-around halves, so payload bytes are never moved inside the buffer.
+// It also keeps a short read history that the event loop uses to size the chunk.
+class RingBuffer {
+    private ByteBuffer storage;
+    private final ByteBuffer[] views = new ByteBuffer[2];
+    private int capacity;
+
+    private int start = 0;
+    private int size = 0;
+
+    // Reads that took all the free space, and the run of reads below a quarter of capacity
+    private int fullReads = 0;
+    private int smallReads = 0;
+
+    RingBuffer(ByteBuffer storage) {
+        setStorage(storage);
+    }
+
+    // Swaps in a chunk of another size; only an empty buffer may be resized, so nothing is copied
+    ByteBuffer replaceStorage(ByteBuffer newStorage) {
+        if (size != 0)
+            throw new IllegalStateException("Only an empty ring buffer can be resized");
+
+        ByteBuffer oldStorage = storage;
+        setStorage(newStorage);
+        return oldStorage;
+    }
+
+    private void setStorage(ByteBuffer newStorage) {
+        storage = newStorage;
+        capacity = newStorage.capacity();
+        start = 0;
+        fullReads = 0;
+        smallReads = 0;
+
+        views[0] = newStorage.duplicate();
+        views[1] = newStorage.duplicate();
+    }
+
+    ByteBuffer storage() {
+        return storage;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    int fullReads() {
+        return fullReads;
+    }
+
+    int smallReads() {
+        return smallReads;
+    }
+
+    // Scattering read into the free space; returns -1 at end of stream
+    long readFrom(ScatteringByteChannel channel) throws IOException {
+        int free = capacity - size;
+        if (free == 0)
+            return 0;
+
+        int end = (start + size) % capacity;
+        int first = Math.min(free, capacity - end);
+        int second = free - first;
+
+        views[0].limit(end + first).position(end);
+        long readBytes;
+        if (second > 0) {
+            views[1].limit(second).position(0);
+            readBytes = channel.read(views, 0, 2);
+        } else {
+            readBytes = channel.read(views[0]);
+        }
+
+        if (readBytes > 0) {
+            size += (int) readBytes;
+            recordRead(readBytes, free);
+        }
+        return readBytes;
+    }
+
+    private void recordRead(long readBytes, int free) {
+        if (readBytes == free) {
+            fullReads++;
+            smallReads = 0;
+        } else if (readBytes < capacity / 4) {
+            smallReads++;
+            fullReads = 0;
+        } else {
+            smallReads = 0;
+        }
+    }
+
+    // Gathering write of the buffered bytes
+    long writeTo(GatheringByteChannel channel) throws IOException {
+        if (size == 0)
+            return 0;
+
+        int first = Math.min(size, capacity - start);
+        int second = size - first;
+
+        views[0].limit(start + first).position(start);
+        long writtenBytes;
+        if (second > 0) {
+            views[1].limit(second).position(0);
+            writtenBytes = channel.write(views, 0, 2);
+        } else {
+            writtenBytes = channel.write(views[0]);
+        }
+
+        size -= (int) writtenBytes;
+        start = (size == 0) ? 0 : (int) ((start + writtenBytes) % capacity);
+        return writtenBytes;
+    }
+}
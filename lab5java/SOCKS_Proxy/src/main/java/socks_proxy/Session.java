@@ -0,0 +1,178 @@
+package socks_proxy;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+class Session {
+    static final int MESSAGE_BUFFER_SIZE = 512;
+
+    SocketChannel client;
+    SocketChannel remote;
+
+    SelectionKey clientKey;
+    SelectionKey remoteKey;
+
+    RingBuffer clientToRemoteBuff;
+    RingBuffer remoteToClientBuff;
+    ByteBuffer messagesBuff;
+    ByteBuffer pendingReply;
+
+    SessionState state = SessionState.GREETING;
+
+    String targetHost;
+    int targetPort;
+
+    // Address lookups still in flight, what the finished ones returned, and the
+    // timer that gives AAAA a moment to follow an A answer
+    int pendingLookups;
+    List<InetAddress> resolvedAddresses;
+    TimerWheel.Timeout resolutionTimer;
+
+    // Connection race: addresses in attempt order, the sockets still connecting
+    // and the timer that starts the next attempt
+    List<InetAddress> candidateAddresses;
+    int nextCandidate;
+    byte connectFailureReply;
+    final List<SelectionKey> connectAttempts = new ArrayList<>(2);
+    TimerWheel.Timeout attemptTimer;
+    long connectStartedAt;
+    long lastAttemptAt;
+
+    volatile boolean endRemoteChannel = false;
+    volatile boolean endClientChannel = false;
+
+    boolean clientReadPaused = false;
+    boolean remoteReadPaused = false;
+
+    TimerWheel.Timeout deadline;
+    long lastActivity;
+
+    private final BufferPool pool;
+    private final TimerWheel timers;
+    private final AdmissionControl admission;
+
+    Session(SocketChannel client, BufferPool pool, TimerWheel timers, AdmissionControl admission) {
+        this.client = client;
+        this.pool = pool;
+        this.timers = timers;
+        this.admission = admission;
+    }
+
+    void allocateMessageBuffer() throws IOException {
+        messagesBuff = pool.acquire(MESSAGE_BUFFER_SIZE);
+    }
+
+    void allocateRelayBuffers(int size) throws IOException {
+        clientToRemoteBuff = new RingBuffer(pool.acquire(size));
+        remoteToClientBuff = new RingBuffer(pool.acquire(size));
+
+        // A handshake reply the client has not taken yet stays queued in pendingReply;
+        // relayed data goes out only after it
+        pool.release(messagesBuff);
+        messagesBuff = null;
+    }
+
+    // Moves an empty relay buffer to a chunk of another size; keeps the old one if the pool is exhausted
+    boolean resizeRelayBuffer(RingBuffer buffer, int size) {
+        ByteBuffer chunk;
+        try {
+            chunk = pool.acquire(size);
+        } catch (IOException e) {
+            return false;
+        }
+
+        pool.release(buffer.replaceStorage(chunk));
+        return true;
+    }
+
+    void releaseRelayBuffer(boolean isClient) {
+        if (isClient) {
+            releaseRelayBuffer(clientToRemoteBuff);
+            clientToRemoteBuff = null;
+        } else {
+            releaseRelayBuffer(remoteToClientBuff);
+            remoteToClientBuff = null;
+        }
+    }
+
+    private void releaseRelayBuffer(RingBuffer buffer) {
+        if (buffer != null)
+            pool.release(buffer.storage());
+    }
+
+    void abandonConnectAttempt(SelectionKey key) {
+        connectAttempts.remove(key);
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    // Drops every attempt still racing, e.g. once another one has connected
+    void cancelConnectAttempts() {
+        for (SelectionKey key : connectAttempts) {
+            key.cancel();
+            closeQuietly(key.channel());
+        }
+        connectAttempts.clear();
+
+        timers.cancel(attemptTimer);
+        attemptTimer = null;
+    }
+
+    void appendPendingReply(ByteBuffer data) {
+        int pending = (pendingReply != null) ? pendingReply.remaining() : 0;
+        ByteBuffer reply = ByteBuffer.allocate(pending + data.remaining());
+        if (pendingReply != null)
+            reply.put(pendingReply);
+        reply.put(data);
+        reply.flip();
+        pendingReply = reply;
+    }
+
+    public boolean isClosed() {
+        return (state == SessionState.CLOSED);
+    }
+
+    public void close() {
+        if (isClosed())
+            return;
+
+        closeQuietly(client);
+        closeQuietly(remote);
+
+        if (clientKey != null)
+            clientKey.cancel();
+        if (remoteKey != null)
+            remoteKey.cancel();
+
+        timers.cancel(deadline);
+        timers.cancel(resolutionTimer);
+        cancelConnectAttempts();
+        releaseBuffers();
+        state = SessionState.CLOSED;
+        admission.release();
+    }
+
+    private void releaseBuffers() {
+        releaseRelayBuffer(clientToRemoteBuff);
+        releaseRelayBuffer(remoteToClientBuff);
+        pool.release(messagesBuff);
+
+        clientToRemoteBuff = null;
+        remoteToClientBuff = null;
+        messagesBuff = null;
+        pendingReply = null;
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Intentionally ignored
+            }
+        }
+    }
+}
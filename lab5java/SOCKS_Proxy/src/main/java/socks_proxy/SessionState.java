@@ -0,0 +1,10 @@
+package socks_proxy;
+
+enum SessionState {
+    GREETING,
+    REQUEST,
+    CONNECTING,
+    RELAYING,
+    RESOLVING,
+    CLOSED
+}
@@ -0,0 +1,164 @@
+package socks_proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+// Hashed timing wheel driven by the event loop thread. Timeouts longer than
+// one revolution wait in their bucket for the remaining number of rounds.
+class TimerWheel {
+    static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        boolean isPending() {
+            return bucket != null;
+        }
+    }
+
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (tail == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            else
+                tail = timeout.prev;
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final LongSupplier clock;
+    // Due timeouts of the tick being expired; they stay cancellable until their task runs
+    private final Bucket expiring = new Bucket();
+
+    private long currentTick = 0;
+    private int size = 0;
+
+    TimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        this(tickDuration, unit, wheelSize, System::nanoTime);
+    }
+
+    TimerWheel(long tickDuration, TimeUnit unit, int wheelSize, LongSupplier clock) {
+        if (Integer.bitCount(wheelSize) != 1)
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[wheelSize];
+        this.mask = wheelSize - 1;
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+
+        for (int i = 0; i < wheelSize; i++)
+            wheel[i] = new Bucket();
+    }
+
+    Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        long deadline = clock.getAsLong() + unit.toNanos(delay);
+        Timeout timeout = new Timeout(task, deadline);
+
+        // Round up, so a timeout never fires before its deadline
+        long ticks = Math.max(currentTick + 1, (deadline - startTime + tickDuration - 1) / tickDuration);
+        timeout.remainingRounds = (ticks - currentTick - 1) / wheel.length;
+        wheel[(int) (ticks & mask)].add(timeout);
+        size++;
+        return timeout;
+    }
+
+    void cancel(Timeout timeout) {
+        if ((timeout != null) && timeout.isPending()) {
+            timeout.bucket.remove(timeout);
+            size--;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Runs every timeout whose tick has passed
+    void expireTimeouts() {
+        long targetTick = (clock.getAsLong() - startTime) / tickDuration;
+        while (currentTick < targetTick) {
+            currentTick++;
+            expireBucket(wheel[(int) (currentTick & mask)]);
+        }
+    }
+
+    // The due timeouts are moved out before any task runs: a task may cancel the others,
+    // and what it schedules must not be visited until the wheel comes round again
+    private void expireBucket(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                expiring.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+
+        while ((timeout = expiring.head) != null) {
+            expiring.remove(timeout);
+            size--;
+            runTask(timeout);
+        }
+    }
+
+    // A failing task must neither stop the loop thread nor the timeouts due after it
+    private static void runTask(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            System.out.println("Timer task failed: " + e);
+        }
+    }
+
+    // Milliseconds until the next non-empty bucket, or -1 if the wheel is empty
+    long millisToNextExpiry() {
+        if (size == 0)
+            return -1;
+
+        long ticksAhead = 1;
+        while ((ticksAhead < wheel.length) && (wheel[(int) ((currentTick + ticksAhead) & mask)].head == null))
+            ticksAhead++;
+
+        long nextTickTime = startTime + (currentTick + ticksAhead) * tickDuration;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTickTime - clock.getAsLong() + 999_999));
+    }
+}
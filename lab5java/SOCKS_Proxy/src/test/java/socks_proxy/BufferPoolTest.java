@@ -0,0 +1,138 @@
+package socks_proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    private static final int LIMIT = 1024 * 1024;
+    private static final int LARGE = 256 * 1024;
+
+    private final BufferPool pool = new BufferPool(LIMIT, new ProxyMetrics());
+
+    private List<ByteBuffer> fillWithLargeChunks() throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < LIMIT / LARGE; i++)
+            chunks.add(pool.acquire(LARGE));
+        return chunks;
+    }
+
+    @Test
+    void reusesReleasedChunks() throws IOException {
+        ByteBuffer chunk = pool.acquire(1000);
+        assertEquals(1024, chunk.capacity());
+        assertEquals(1024, pool.getUsedBytes());
+
+        pool.release(chunk);
+        assertEquals(0, pool.getUsedBytes());
+        assertEquals(LIMIT, pool.getAvailableBytes(1024));
+
+        // Served from the slab already carved, nothing more is reserved
+        pool.acquire(1024);
+        assertEquals(LIMIT - 1024, pool.getAvailableBytes(1024));
+    }
+
+    @Test
+    void failsOnceEveryClassIsExhausted() throws IOException {
+        fillWithLargeChunks();
+
+        assertThrows(IOException.class, () -> pool.acquire(BufferPool.MIN_CHUNK_SIZE));
+        assertEquals(0, pool.getAvailableBytes(BufferPool.MIN_CHUNK_SIZE));
+    }
+
+    @Test
+    void smallRequestSplitsLargerFreeChunk() throws IOException {
+        for (ByteBuffer chunk : fillWithLargeChunks())
+            pool.release(chunk);
+
+        // The whole limit sits in the large class, yet small requests must still be served
+        ByteBuffer message = pool.acquire(BufferPool.MIN_CHUNK_SIZE);
+        ByteBuffer relay = pool.acquire(4096);
+        assertEquals(BufferPool.MIN_CHUNK_SIZE, message.capacity());
+        assertEquals(4096, relay.capacity());
+
+        // One large chunk was split, the rest of it is back in the smaller classes
+        assertEquals(LIMIT - BufferPool.MIN_CHUNK_SIZE - 4096, pool.getAvailableBytes(BufferPool.MIN_CHUNK_SIZE));
+        assertEquals(LIMIT - LARGE, pool.getAvailableBytes(LARGE));
+    }
+
+    @Test
+    void splitChunksDoNotOverlap() throws IOException {
+        for (ByteBuffer chunk : fillWithLargeChunks())
+            pool.release(chunk);
+
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < LARGE / 4096; i++) {
+            ByteBuffer chunk = pool.acquire(4096);
+            chunk.putInt(0, i);
+            chunks.add(chunk);
+        }
+
+        for (int i = 0; i < chunks.size(); i++)
+            assertEquals(i, chunks.get(i).getInt(0));
+    }
+
+    @Test
+    void availableBytesIgnoresTooSmallChunks() throws IOException {
+        ByteBuffer small = pool.acquire(BufferPool.MIN_CHUNK_SIZE);
+
+        // The slab was halved down to 512 bytes; the 512 to 2048-byte halves cannot hold 4 KiB
+        assertEquals(LIMIT - 4096, pool.getAvailableBytes(4096));
+        assertEquals(LIMIT - BufferPool.MIN_CHUNK_SIZE, pool.getAvailableBytes(BufferPool.MIN_CHUNK_SIZE));
+
+        pool.release(small);
+        assertEquals(LIMIT, pool.getAvailableBytes(4096));
+    }
+
+    @Test
+    void releasedBuddiesMergeBackIntoLargeChunks() throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < LIMIT / 4096; i++)
+            chunks.add(pool.acquire(4096));
+        assertThrows(IOException.class, () -> pool.acquire(LARGE));
+
+        // Released out of order, the pieces still find their buddies
+        Collections.shuffle(chunks);
+        for (ByteBuffer chunk : chunks)
+            pool.release(chunk);
+
+        assertEquals(LIMIT, pool.getAvailableBytes(BufferPool.MAX_CHUNK_SIZE));
+        assertEquals(BufferPool.MAX_CHUNK_SIZE, pool.acquire(BufferPool.MAX_CHUNK_SIZE).capacity());
+    }
+
+    @Test
+    void chunkStaysSplitWhileItsBuddyIsInUse() throws IOException {
+        ByteBuffer first = pool.acquire(LARGE);
+        ByteBuffer second = pool.acquire(LARGE);
+        pool.release(first);
+
+        assertEquals(LIMIT - LARGE, pool.getAvailableBytes(LARGE));
+        assertEquals(LIMIT / 2, pool.getAvailableBytes(2 * LARGE));
+
+        pool.release(second);
+        assertEquals(LIMIT, pool.getAvailableBytes(BufferPool.MAX_CHUNK_SIZE));
+    }
+
+    @Test
+    void slabShrunkAtTheLimitStillMerges() throws IOException {
+        BufferPool small = new BufferPool(LIMIT + 3 * 4096, new ProxyMetrics());
+        ByteBuffer full = small.acquire(BufferPool.MAX_CHUNK_SIZE);
+
+        // The second slab only has room for 12 KiB, cut into 8 KiB and 4 KiB chunks
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            chunks.add(small.acquire(4096));
+        assertThrows(IOException.class, () -> small.acquire(4096));
+
+        for (ByteBuffer chunk : chunks)
+            small.release(chunk);
+        small.release(full);
+        assertEquals(8192, small.acquire(8192).capacity());
+        assertEquals(4096, small.acquire(4096).capacity());
+        assertEquals(BufferPool.MAX_CHUNK_SIZE, small.acquire(BufferPool.MAX_CHUNK_SIZE).capacity());
+    }
+}
@@ -0,0 +1,241 @@
+package socks_proxy;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Type;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DnsCodecTest {
+    private static final int RESPONSE = 0x8180;
+    private static final int NXDOMAIN = 0x8183;
+    private static final int REFUSED = 0x8185;
+    private static final int TRUNCATED = 0x8380;
+    // Offset of the question name, right after the header
+    private static final int QUESTION = 12;
+
+    private static byte[] name(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.writeBytes(label.getBytes());
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static byte[] pointer(int offset) {
+        return new byte[] { (byte) (0xC0 | (offset >> 8)), (byte) offset };
+    }
+
+    private static byte[] question(String name, int type) {
+        return ByteBuffer.allocate(name(name).length + 4).put(name(name)).putShort((short) type).putShort((short) 1).array();
+    }
+
+    private static byte[] record(byte[] owner, int type, long ttl, byte[] data) {
+        return ByteBuffer.allocate(owner.length + 10 + data.length)
+                .put(owner).putShort((short) type).putShort((short) 1).putInt((int) ttl)
+                .putShort((short) data.length).put(data).array();
+    }
+
+    private static byte[] soa(long minimum) {
+        byte[] names = concat(name("ns.test"), name("admin.test"));
+        return ByteBuffer.allocate(names.length + 20).put(names)
+                .putInt(1).putInt(60).putInt(60).putInt(60).putInt((int) minimum).array();
+    }
+
+    private static byte[] ipv4(String address) throws UnknownHostException {
+        return InetAddress.getByName(address).getAddress();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.writeBytes(part);
+        return out.toByteArray();
+    }
+
+    private static ByteBuffer message(int flags, int questions, int answers, int authorities, byte[]... sections) {
+        byte[] body = concat(sections);
+        return ByteBuffer.allocate(12 + body.length)
+                .putShort((short) 0x1234).putShort((short) flags)
+                .putShort((short) questions).putShort((short) answers).putShort((short) authorities).putShort((short) 0)
+                .put(body).flip();
+    }
+
+    @Test
+    void readsAddressRecords() throws IOException {
+        ByteBuffer reply = message(RESPONSE, 1, 2, 0, question("a.test", DnsCodec.TYPE_A),
+                record(pointer(QUESTION), DnsCodec.TYPE_A, 30, ipv4("127.0.0.1")),
+                record(pointer(QUESTION), DnsCodec.TYPE_A, 10, ipv4("127.0.0.2")));
+
+        DnsAnswer answer = DnsCodec.readAnswer(reply, DnsCodec.TYPE_A);
+        assertEquals(List.of(InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2")), answer.addresses);
+        assertEquals(10, answer.ttl);
+        assertEquals(-1, answer.negativeTtl);
+        assertTrue(answer.aliases.isEmpty());
+    }
+
+    @Test
+    void readsOnlyRecordsOfRequestedType() throws IOException {
+        byte[] ipv6 = InetAddress.getByName("::1").getAddress();
+        ByteBuffer reply = message(RESPONSE, 1, 2, 0, question("dual.test", DnsCodec.TYPE_AAAA),
+                record(pointer(QUESTION), DnsCodec.TYPE_A, 30, ipv4("127.0.0.1")),
+                record(pointer(QUESTION), DnsCodec.TYPE_AAAA, 30, ipv6));
+
+        DnsAnswer answer = DnsCodec.readAnswer(reply, DnsCodec.TYPE_AAAA);
+        assertEquals(List.of(InetAddress.getByName("::1")), answer.addresses);
+    }
+
+    @Test
+    void replyWithoutQuestionIsLeftToFallback() throws IOException {
+        ByteBuffer reply = message(REFUSED, 0, 0, 0);
+        assertNull(DnsCodec.readAnswer(reply, DnsCodec.TYPE_A));
+
+        // The fallback must not depend on the question either, and must not cache the failure
+        DnsAnswer answer = DnsAnswer.fromMessage(new Message(reply), Type.A);
+        assertTrue(answer.isEmpty());
+        assertEquals(-1, answer.negativeTtl);
+    }
+
+    @Test
+    void negativeAnswerUsesSoaMinimum() {
+        ByteBuffer reply = message(NXDOMAIN, 1, 0, 1, question("nx.test", DnsCodec.TYPE_A),
+                record(name("test"), DnsCodec.TYPE_SOA, 3600, soa(30)));
+
+        DnsAnswer answer = DnsCodec.readAnswer(reply, DnsCodec.TYPE_A);
+        assertTrue(answer.isEmpty());
+        assertEquals(30, answer.negativeTtl);
+    }
+
+    @Test
+    void followsChainInAnyOrder() throws IOException {
+        ByteBuffer reply = message(RESPONSE, 1, 4, 0, question("order.test", DnsCodec.TYPE_A),
+                record(name("other.test"), DnsCodec.TYPE_A, 9, ipv4("10.9.9.9")),
+                record(name("hop2.test"), DnsCodec.TYPE_A, 7, ipv4("127.0.0.1")),
+                record(name("hop1.test"), DnsCodec.TYPE_CNAME, 30, name("hop2.test")),
+                record(pointer(QUESTION), DnsCodec.TYPE_CNAME, 40, name("HOP1.test")));
+
+        DnsAnswer answer = DnsCodec.readAnswer(reply, DnsCodec.TYPE_A);
+        assertEquals(List.of(InetAddress.getByName("127.0.0.1")), answer.addresses);
+        assertEquals(7, answer.ttl);
+        assertEquals("hop2.test", answer.canonicalName());
+        assertEquals(2, answer.aliases.size());
+        assertEquals("order.test", answer.aliases.get(0).name);
+        assertEquals("hop1.test", answer.aliases.get(0).target);
+        assertEquals(40, answer.aliases.get(0).ttl);
+        assertEquals(30, answer.aliases.get(1).ttl);
+        assertFalse(answer.isIncomplete);
+    }
+
+    @Test
+    void chainWithoutAddressesIsIncomplete() {
+        ByteBuffer reply = message(RESPONSE, 1, 1, 0, question("alias.test", DnsCodec.TYPE_A),
+                record(pointer(QUESTION), DnsCodec.TYPE_CNAME, 20, name("target.test")));
+
+        DnsAnswer answer = DnsCodec.readAnswer(reply, DnsCodec.TYPE_A);
+        assertTrue(answer.isEmpty());
+        assertTrue(answer.isIncomplete);
+        assertEquals("target.test", answer.canonicalName());
+    }
+
+    @Test
+    void aliasLoopIsNotCached() {
+        ByteBuffer reply = message(RESPONSE, 1, 1, 0, question("loop.test", DnsCodec.TYPE_A),
+                record(pointer(QUESTION), DnsCodec.TYPE_CNAME, 40, pointer(QUESTION)));
+
+        DnsAnswer answer = DnsCodec.readAnswer(reply, DnsCodec.TYPE_A);
+        assertTrue(answer.isEmpty());
+        assertTrue(answer.aliases.isEmpty());
+        assertEquals(-1, answer.negativeTtl);
+    }
+
+    @Test
+    void compressionLoopIsMalformed() {
+        // Question "a.test" takes 12..23, the answer owner 24..25 and its fixed fields 26..35,
+        // so the CNAME data at 36 points at itself
+        ByteBuffer reply = message(RESPONSE, 1, 1, 0, question("a.test", DnsCodec.TYPE_A),
+                record(pointer(QUESTION), DnsCodec.TYPE_CNAME, 40, pointer(36)));
+
+        assertNull(DnsCodec.readAnswer(reply, DnsCodec.TYPE_A));
+    }
+
+    @Test
+    void truncatedRecordDataIsMalformed() throws IOException {
+        ByteBuffer reply = message(RESPONSE, 1, 1, 0, question("a.test", DnsCodec.TYPE_A),
+                record(pointer(QUESTION), DnsCodec.TYPE_A, 30, ipv4("127.0.0.1")));
+        reply.limit(reply.limit() - 2);
+
+        assertNull(DnsCodec.readAnswer(reply, DnsCodec.TYPE_A));
+    }
+
+    @Test
+    void addressOfWrongLengthIsMalformed() {
+        ByteBuffer reply = message(RESPONSE, 1, 1, 0, question("a.test", DnsCodec.TYPE_A),
+                record(pointer(QUESTION), DnsCodec.TYPE_A, 30, new byte[] { 127, 0, 0, 1, 0 }));
+
+        assertNull(DnsCodec.readAnswer(reply, DnsCodec.TYPE_A));
+    }
+
+    @Test
+    void shortMessageIsMalformed() {
+        assertNull(DnsCodec.readAnswer(ByteBuffer.wrap(new byte[] { 0x12, 0x34, (byte) 0x81 }), DnsCodec.TYPE_A));
+    }
+
+    @Test
+    void readsHeaderFields() {
+        ByteBuffer reply = message(TRUNCATED, 1, 0, 0, question("many.test", DnsCodec.TYPE_A));
+
+        assertEquals(0x1234, DnsCodec.readId(reply));
+        assertTrue(DnsCodec.isTruncated(reply));
+        assertFalse(DnsCodec.isTruncated(message(RESPONSE, 0, 0, 0)));
+    }
+
+    @Test
+    void matchesOnlyTheQuestionAsked() {
+        ByteBuffer reply = message(RESPONSE, 1, 0, 0, question("WWW.Example.com", DnsCodec.TYPE_A));
+
+        assertTrue(DnsCodec.matchesQuestion(reply, "www.example.com", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.matchesQuestion(reply, "www.example.com", DnsCodec.TYPE_AAAA));
+        assertFalse(DnsCodec.matchesQuestion(reply, "www.example.co", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.matchesQuestion(reply, "www.example.com.evil", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.matchesQuestion(reply, "wwwexample.com", DnsCodec.TYPE_A));
+    }
+
+    @Test
+    void rejectsOtherClassOrMissingQuestion() {
+        byte[] chaos = question("a.test", DnsCodec.TYPE_A);
+        chaos[chaos.length - 1] = 3;
+
+        assertFalse(DnsCodec.matchesQuestion(message(RESPONSE, 1, 0, 0, chaos), "a.test", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.matchesQuestion(message(REFUSED, 0, 0, 0), "a.test", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.hasQuestion(message(REFUSED, 0, 0, 0)));
+        assertTrue(DnsCodec.isServerFailure(message(REFUSED, 0, 0, 0)));
+        assertFalse(DnsCodec.isServerFailure(message(NXDOMAIN, 0, 0, 0)));
+    }
+
+    @Test
+    void writesQueryThatDnsjavaReads() throws IOException {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        assertTrue(DnsCodec.writeQuery(query, 0x4321, "www.Example.com", DnsCodec.TYPE_AAAA));
+
+        Message message = new Message(query);
+        assertEquals(0x4321, message.getHeader().getID());
+        assertEquals("www.Example.com.", message.getQuestion().getName().toString());
+        assertEquals(Type.AAAA, message.getQuestion().getType());
+    }
+
+    @Test
+    void leavesUnusualNamesToDnsjava() {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        assertFalse(DnsCodec.writeQuery(query, 1, "a..test", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.writeQuery(query, 1, "x".repeat(64) + ".test", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.writeQuery(query, 1, "a\\.test", DnsCodec.TYPE_A));
+        assertFalse(DnsCodec.writeQuery(query, 1, "über.test", DnsCodec.TYPE_A));
+    }
+}
@@ -0,0 +1,53 @@
+package socks_proxy;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryIdTableTest {
+    private static final int IDS = (1 << 16) - 1;
+
+    private final QueryIdTable<String> table = new QueryIdTable<>();
+
+    @Test
+    void handsOutEveryIdOnce() {
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < IDS; i++) {
+            int id = table.add("query");
+            assertTrue((id > 0) && (id <= IDS));
+            assertTrue(ids.add(id));
+        }
+
+        assertEquals(-1, table.add("one too many"));
+        assertEquals(IDS, table.size());
+    }
+
+    @Test
+    void removesAndReusesIds() {
+        int id = table.add("a");
+        assertEquals("a", table.get(id));
+        assertEquals("a", table.remove(id));
+        assertNull(table.get(id));
+        assertNull(table.remove(id));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void releasedIdsDoNotComeBackInReleaseOrder() {
+        int[] released = new int[IDS];
+        for (int i = 0; i < IDS; i++)
+            released[i] = table.add("query");
+        for (int id : released)
+            table.remove(id);
+
+        // Handing the IDs out again in the order they were returned would make them predictable
+        int sameOrder = 0;
+        for (int i = 0; i < IDS; i++) {
+            if (table.add("query") == released[i])
+                sameOrder++;
+        }
+        assertTrue(sameOrder < 100, "IDs repeated the release order " + sameOrder + " times");
+    }
+}
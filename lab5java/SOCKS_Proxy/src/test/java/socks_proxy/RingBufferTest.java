@@ -0,0 +1,163 @@
+package socks_proxy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferTest {
+    // In-memory channel that moves at most `step` bytes per call, like a socket taking part of a write
+    private static class ChunkedChannel implements ScatteringByteChannel, GatheringByteChannel {
+        private final ByteBuffer input;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int step;
+
+        ChunkedChannel(byte[] input, int step) {
+            this.input = ByteBuffer.wrap(input);
+            this.step = step;
+        }
+
+        byte[] written() {
+            return output.toByteArray();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            if (!input.hasRemaining())
+                return -1;
+
+            long total = 0;
+            for (int i = offset; (i < offset + length) && (total < step); i++) {
+                int count = (int) Math.min(Math.min(dsts[i].remaining(), input.remaining()), step - total);
+                dsts[i].put(input.slice(input.position(), count));
+                input.position(input.position() + count);
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) {
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return (int) read(new ByteBuffer[] { dst }, 0, 1);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; (i < offset + length) && (total < step); i++) {
+                int count = (int) Math.min(srcs[i].remaining(), step - total);
+                for (int b = 0; b < count; b++)
+                    output.write(srcs[i].get());
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) i;
+        return bytes;
+    }
+
+    @Test
+    void keepsByteOrderAcrossWrapAround() throws IOException {
+        byte[] data = sequence(20);
+        ChunkedChannel channel = new ChunkedChannel(data, 6);
+        RingBuffer buffer = new RingBuffer(ByteBuffer.allocate(8));
+
+        assertEquals(6, buffer.readFrom(channel));
+        channel.step = 4;
+        assertEquals(4, buffer.writeTo(channel));
+        assertEquals(2, buffer.size());
+
+        // The free space wraps: two bytes at the end of the storage and four at its start
+        channel.step = 6;
+        assertEquals(6, buffer.readFrom(channel));
+        assertTrue(buffer.isFull());
+        assertEquals(0, buffer.readFrom(channel));
+
+        // The buffered bytes wrap as well, so the second write gathers both halves
+        channel.step = 3;
+        assertEquals(3, buffer.writeTo(channel));
+        channel.step = 8;
+        assertEquals(5, buffer.writeTo(channel));
+        assertTrue(buffer.isEmpty());
+
+        assertEquals(8, buffer.readFrom(channel));
+        assertEquals(8, buffer.writeTo(channel));
+        assertEquals(0, buffer.writeTo(channel));
+        assertArrayEquals(data, channel.written());
+    }
+
+    @Test
+    void reportsEndOfStream() throws IOException {
+        ChunkedChannel channel = new ChunkedChannel(sequence(3), 8);
+        RingBuffer buffer = new RingBuffer(ByteBuffer.allocate(8));
+
+        assertEquals(3, buffer.readFrom(channel));
+        assertEquals(-1, buffer.readFrom(channel));
+        assertEquals(3, buffer.size());
+    }
+
+    @Test
+    void tracksFullAndSmallReads() throws IOException {
+        ChunkedChannel channel = new ChunkedChannel(sequence(64), 16);
+        RingBuffer buffer = new RingBuffer(ByteBuffer.allocate(16));
+
+        assertEquals(16, buffer.readFrom(channel));
+        assertEquals(16, buffer.writeTo(channel));
+        assertEquals(16, buffer.readFrom(channel));
+        assertEquals(16, buffer.writeTo(channel));
+        assertEquals(2, buffer.fullReads());
+
+        channel.step = 1;
+        buffer.readFrom(channel);
+        buffer.readFrom(channel);
+        assertEquals(0, buffer.fullReads());
+        assertEquals(2, buffer.smallReads());
+    }
+
+    @Test
+    void replacesStorageOnlyWhenEmpty() throws IOException {
+        ChunkedChannel channel = new ChunkedChannel(sequence(4), 4);
+        ByteBuffer small = ByteBuffer.allocate(8);
+        RingBuffer buffer = new RingBuffer(small);
+
+        buffer.readFrom(channel);
+        assertThrows(IllegalStateException.class, () -> buffer.replaceStorage(ByteBuffer.allocate(16)));
+
+        buffer.writeTo(channel);
+        assertSame(small, buffer.replaceStorage(ByteBuffer.allocate(16)));
+        assertEquals(16, buffer.capacity());
+        assertEquals(0, buffer.fullReads());
+    }
+}
@@ -0,0 +1,103 @@
+package socks_proxy;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+    private static final int WHEEL_SIZE = 8;
+
+    private long now = 0;
+    private final TimerWheel timers = new TimerWheel(10, TimeUnit.MILLISECONDS, WHEEL_SIZE, () -> now);
+    private final List<String> fired = new ArrayList<>();
+
+    private void advanceTo(long millis) {
+        now = TimeUnit.MILLISECONDS.toNanos(millis);
+        timers.expireTimeouts();
+    }
+
+    @Test
+    void firesNoEarlierThanDeadline() {
+        timers.schedule(25, TimeUnit.MILLISECONDS, () -> fired.add("a"));
+
+        advanceTo(20);
+        assertEquals(List.of(), fired);
+
+        advanceTo(30);
+        assertEquals(List.of("a"), fired);
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotFire() {
+        TimerWheel.Timeout timeout = timers.schedule(10, TimeUnit.MILLISECONDS, () -> fired.add("a"));
+        timers.cancel(timeout);
+
+        advanceTo(100);
+        assertEquals(List.of(), fired);
+        assertFalse(timeout.isPending());
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    void cancelInsideCallbackKeepsRestOfBucket() {
+        TimerWheel.Timeout[] second = new TimerWheel.Timeout[1];
+        timers.schedule(10, TimeUnit.MILLISECONDS, () -> {
+            fired.add("a");
+            timers.cancel(second[0]);
+        });
+        second[0] = timers.schedule(10, TimeUnit.MILLISECONDS, () -> fired.add("b"));
+        timers.schedule(10, TimeUnit.MILLISECONDS, () -> fired.add("c"));
+        timers.schedule(10 + 10 * WHEEL_SIZE, TimeUnit.MILLISECONDS, () -> fired.add("d"));
+
+        advanceTo(10);
+        assertEquals(List.of("a", "c"), fired);
+        assertEquals(1, timers.size());
+
+        advanceTo(10 + 10 * WHEEL_SIZE);
+        assertEquals(List.of("a", "c", "d"), fired);
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    void rescheduleInsideCallbackWaitsForNextRevolution() {
+        // The new timeout lands in the bucket being expired, behind a timeout still to run
+        timers.schedule(10, TimeUnit.MILLISECONDS,
+                () -> timers.schedule(10 * WHEEL_SIZE, TimeUnit.MILLISECONDS, () -> fired.add("again")));
+        timers.schedule(10, TimeUnit.MILLISECONDS, () -> fired.add("b"));
+
+        advanceTo(10);
+        assertEquals(List.of("b"), fired);
+        assertEquals(1, timers.size());
+
+        advanceTo(10 * WHEEL_SIZE);
+        assertEquals(List.of("b"), fired);
+
+        advanceTo(10 + 10 * WHEEL_SIZE);
+        assertEquals(List.of("b", "again"), fired);
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    void failingTaskDoesNotStopOthers() {
+        timers.schedule(10, TimeUnit.MILLISECONDS, () -> {
+            throw new IllegalStateException("boom");
+        });
+        timers.schedule(10, TimeUnit.MILLISECONDS, () -> fired.add("b"));
+
+        advanceTo(10);
+        assertEquals(List.of("b"), fired);
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    void reportsTimeToNextExpiry() {
+        assertEquals(-1, timers.millisToNextExpiry());
+
+        timers.schedule(30, TimeUnit.MILLISECONDS, () -> fired.add("a"));
+        assertEquals(30, timers.millisToNextExpiry());
+    }
+}